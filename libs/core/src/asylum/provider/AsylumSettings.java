@@ -19,17 +19,22 @@ package asylum.provider;
 import android.annotation.SdkConstant;
 import android.annotation.SdkConstant.SdkConstantType;
 import android.annotation.SystemApi;
+import android.app.ActivityManager;
+import android.app.ActivityManagerNative;
 import android.app.ActivityThread;
 import android.app.AppOpsManager;
 import android.app.Application;
+import android.app.IUserSwitchObserver;
 import android.app.SearchManager;
 import android.app.WallpaperManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.IContentProvider;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -45,10 +50,13 @@ import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.DropBoxManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.IRemoteCallback;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.Build.VERSION_CODES;
@@ -59,18 +67,32 @@ import android.util.AndroidException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.MemoryIntArray;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.widget.ILockSettings;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 /**
@@ -110,6 +132,58 @@ public final class AsylumSettings {
      */
     public static final String CALL_METHOD_GET_GLOBAL = "GET_global";
 
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from the 'system'
+     * table at once.
+     */
+    public static final String CALL_METHOD_GET_MULTI_SYSTEM = "GET_MULTI_system";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from the 'secure'
+     * table at once.
+     */
+    public static final String CALL_METHOD_GET_MULTI_SECURE = "GET_MULTI_secure";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from the 'global'
+     * table at once.
+     */
+    public static final String CALL_METHOD_GET_MULTI_GLOBAL = "GET_MULTI_global";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to list the keys of the 'system' table
+     * starting with a prefix.
+     */
+    public static final String CALL_METHOD_LIST_SYSTEM = "LIST_system";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to list the keys of the 'secure' table
+     * starting with a prefix.
+     */
+    public static final String CALL_METHOD_LIST_SECURE = "LIST_secure";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to list the keys of the 'global' table
+     * starting with a prefix.
+     */
+    public static final String CALL_METHOD_LIST_GLOBAL = "LIST_global";
+
+    /**
+     * @hide - String argument extra with the key prefix of a list request
+     */
+    public static final String CALL_METHOD_PREFIX_KEY = "_prefix";
+
+    /**
+     * @hide - String array argument extra with the keys of a multi-key request, also used for
+     * the keys found by a list request
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - String array with the values of a multi-key reply, in the order of the keys
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
     /**
      * @hide - Private call() method to write to 'system' table
      */
@@ -125,6 +199,72 @@ public final class AsylumSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method to write several keys of the 'system' table in one
+     * transaction.  Takes the names and values in the {@link #CALL_METHOD_NAMES_KEY} and
+     * {@link #CALL_METHOD_VALUES_KEY} extras.
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SYSTEM = "PUT_MULTI_system";
+
+    /**
+     * @hide - Private call() method to write several keys of the 'secure' table in one
+     * transaction.
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SECURE = "PUT_MULTI_secure";
+
+    /**
+     * @hide - Private call() method to write several keys of the 'global' table in one
+     * transaction.
+     */
+    public static final String CALL_METHOD_PUT_MULTI_GLOBAL = "PUT_MULTI_global";
+
+    /**
+     * @hide - Boolean argument extra to the fast-path call()-based get requests asking the
+     * provider to hand back its shared memory generation counters.  Put requests carrying it
+     * get back the generations the written values were published under.
+     */
+    public static final String CALL_METHOD_TRACK_GENERATION_KEY = "_track_generation";
+
+    /**
+     * @hide - Key with the generation counter index in the reply to a tracked get request
+     */
+    public static final String CALL_METHOD_GENERATION_INDEX_KEY = "_generation_index";
+
+    /**
+     * @hide - Key with the current generation in the reply to a tracked get request
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
+    /**
+     * @hide - Private call() method registering an {@link IAsylumSettingsListener} for the
+     * table named by the request.  Takes the listener in {@link #CALL_METHOD_LISTENER_KEY} and
+     * the user in {@link #CALL_METHOD_USER_KEY}, which may be {@link UserHandle#USER_ALL}.
+     */
+    public static final String CALL_METHOD_REGISTER_LISTENER = "REGISTER_LISTENER";
+
+    /**
+     * @hide - Private call() method unregistering an {@link IAsylumSettingsListener}
+     */
+    public static final String CALL_METHOD_UNREGISTER_LISTENER = "UNREGISTER_LISTENER";
+
+    /**
+     * @hide - Binder argument extra with the listener of a (un)register request
+     */
+    public static final String CALL_METHOD_LISTENER_KEY = "_listener";
+
+    /**
+     * @hide - Int array with the generation each key of a tracked put request was published
+     * under, or each key of a tracked get-multi request had before its value was read, in the
+     * order of the keys.  Comes with {@link #CALL_METHOD_GENERATION_INDEX_KEY}.
+     */
+    public static final String CALL_METHOD_WRITE_GENERATIONS_KEY = "_write_generations";
+
+    /**
+     * @hide - Boolean reply extra of a put request, set when the provider rolled the write
+     * back.  Nothing of the request was stored then.
+     */
+    public static final String CALL_METHOD_WRITE_FAILED_KEY = "_write_failed";
+
     // endregion
 
     /** @hide */
@@ -261,228 +401,2683 @@ public final class AsylumSettings {
         }
     }
 
-    // Thread-safe.
-    private static class NameValueCache {
-        private final String mVersionSystemProperty;
-        private final Uri mUri;
+    /**
+     * Type and default value of a key declared with an ID in
+     * {@link AsylumSettingsKeys}.  The default is parsed once, so getters falling back to it
+     * don't parse either.
+     */
+    private static final class KeySpec {
+        static final int TYPE_STRING = 0;
+        static final int TYPE_INT = 1;
+        static final int TYPE_LONG = 2;
+        static final int TYPE_FLOAT = 3;
+
+        final int id;
+        final String name;
+        final int type;
+        // Holds a null value if the key has no default
+        final CacheEntry defaultEntry;
+
+        KeySpec(int id, String name, int type, String defaultValue) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.defaultEntry = new CacheEntry(defaultValue, -1);
+        }
 
-        private static final String[] SELECT_VALUE_PROJECTION =
-            new String[] { Settings.NameValueTable.VALUE };
-        private static final String NAME_EQ_PLACEHOLDER = "name=?";
+        /**
+         * Checks that every key of a table schema sits at the index of its ID.
+         */
+        static KeySpec[] checkSchema(KeySpec[] schema) {
+            for (int i = 0; i < schema.length; i++) {
+                if (schema[i].id != i) {
+                    throw new IllegalStateException("Key " + schema[i].name + " has id "
+                            + schema[i].id + " but is declared at index " + i);
+                }
+            }
+            return schema;
+        }
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        static String[] getNames(KeySpec[] schema) {
+            final String[] names = new String[schema.length];
+            for (int i = 0; i < schema.length; i++) {
+                names[i] = schema[i].name;
+            }
+            return names;
+        }
 
-        // Initially null; set lazily and held forever.  Synchronized on 'this'.
-        private IContentProvider mContentProvider = null;
+        static void getDefaultValues(KeySpec[] schema, Map<String, String> outValues) {
+            for (KeySpec spec : schema) {
+                if (spec.defaultEntry.value != null) {
+                    outValues.put(spec.name, spec.defaultEntry.value);
+                }
+            }
+        }
+    }
 
-        // The method we'll call (or null, to not use) on the provider
-        // for the fast path of retrieving settings.
-        private final String mCallGetCommand;
-        private final String mCallSetCommand;
+    /**
+     * Reads generation counters out of the shared memory region published by the
+     * AsylumSettingsProvider.  A table has one counter for the table as a whole followed by
+     * {@link #GENERATION_BUCKET_COUNT} counters for the keys hashing into each bucket.
+     * Checking a counter is a plain memory read, no IPC involved.
+     */
+    private static final class GenerationTracker {
+        private final MemoryIntArray mArray;
+        private final int mIndex;
 
-        public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
-            mVersionSystemProperty = versionSystemProperty;
-            mUri = uri;
-            mCallGetCommand = getCommand;
-            mCallSetCommand = setCommand;
+        GenerationTracker(MemoryIntArray array, int index) {
+            mArray = array;
+            mIndex = index;
         }
 
-        private IContentProvider lazyGetProvider(ContentResolver cr) {
-            IContentProvider cp = null;
-            synchronized (this) {
-                cp = mContentProvider;
-                if (cp == null) {
-                    cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
-                }
+        /**
+         * @return the current generation of the whole table, or -1 if the counter can't be
+         * read anymore.
+         */
+        int getTableGeneration() {
+            return readGeneration(mIndex);
+        }
+
+        /**
+         * @return the current generation of the bucket {@code name} hashes into, or -1 if the
+         * counter can't be read anymore.
+         */
+        int getGeneration(String name) {
+            return getBucketGeneration(getGenerationBucket(name));
+        }
+
+        /**
+         * @return the current generation of a bucket, or -1 if the counter can't be read
+         * anymore.
+         */
+        int getBucketGeneration(int bucket) {
+            return readGeneration(mIndex + 1 + bucket);
+        }
+
+        int getIndex() {
+            return mIndex;
+        }
+
+        private int readGeneration(int index) {
+            try {
+                return mArray.get(index);
+            } catch (IOException e) {
+                Log.e(TAG, "Error getting current generation", e);
             }
-            return cp;
+            return -1;
         }
 
-        public boolean putStringForUser(ContentResolver cr, String name, String value,
-                final int userHandle) {
-            Log.d("TEST", "putStringForUser - " + name + " : " + value);
+        void destroy() {
             try {
-                Bundle arg = new Bundle();
-                arg.putString(Settings.NameValueTable.VALUE, value);
-                arg.putInt(CALL_METHOD_USER_KEY, userHandle);
-                IContentProvider cp = lazyGetProvider(cr);
-                cp.call(cr.getPackageName(), mCallSetCommand, name, arg);
-            } catch (RemoteException e) {
-                Log.w(TAG, "Can't set key " + name + " in " + mUri, e);
-                return false;
+                mArray.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing generation tracker", e);
             }
-            return true;
         }
+    }
 
-        public String getStringForUser(ContentResolver cr, String name, final int userHandle) {
-            final boolean isSelf = (userHandle == UserHandle.myUserId()) ||
-                    (userHandle == UserHandle.USER_CURRENT);
-            Log.d("TEST", "getStringForUser - " + name);
-            if (isSelf) {
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+    /**
+     * @hide - Number of per-key generation buckets the provider keeps for each table
+     */
+    public static final int GENERATION_BUCKET_COUNT = 16;
 
-                // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
+    /**
+     * @hide - Returns the generation bucket of a setting.  Shared between the provider and
+     * the client caches, so it must only depend on the name.  Only the family of the name,
+     * up to and including its first '_', is hashed, so that every key of a family shares a
+     * bucket, including keys written after a scan of the family was cached.
+     */
+    public static int getGenerationBucket(String name) {
+        final int familyEnd = name.indexOf('_');
+        int h;
+        if (familyEnd < 0) {
+            h = name.hashCode();
+        } else {
+            // Same as the hash code of the family, without allocating it
+            h = 0;
+            for (int i = 0; i <= familyEnd; i++) {
+                h = 31 * h + name.charAt(i);
+            }
+        }
+        return (h ^ (h >>> 16)) & (GENERATION_BUCKET_COUNT - 1);
+    }
 
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    }
+    /**
+     * Returns the generation bucket of every key starting with {@code prefix}, or -1 if the
+     * prefix doesn't name a single family and its keys may be in any bucket.
+     */
+    private static int getPrefixGenerationBucket(String prefix) {
+        return prefix.indexOf('_') >= 0 ? getGenerationBucket(prefix) : -1;
+    }
 
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
-                    }
+    /**
+     * A settings value as served by the client-side caches.  Numeric values are parsed once
+     * when the entry is created, so typed getters neither parse, box nor allocate on hits.
+     */
+    private static final class CacheEntry {
+        // Returned when a value could not be read; never cached
+        static final CacheEntry NONE = new CacheEntry(null, -1);
+
+        final String value;
+        final long generation;
+
+        private final boolean mIsInt;
+        private final int mIntValue;
+        private final boolean mIsLong;
+        private final long mLongValue;
+        private final boolean mIsFloat;
+        private final float mFloatValue;
+
+        CacheEntry(String value, long generation) {
+            this.value = value;
+            this.generation = generation;
+
+            long longValue = 0;
+            boolean isLong = false;
+            if (mayBeLong(value)) {
+                try {
+                    longValue = Long.parseLong(value);
+                    isLong = true;
+                } catch (NumberFormatException e) {
+                    // Out of range
+                }
+            }
+            mIsLong = isLong;
+            mLongValue = longValue;
+            mIsInt = isLong && (int) longValue == longValue;
+            mIntValue = (int) longValue;
+
+            float floatValue = 0;
+            boolean isFloat = isLong;
+            if (isLong) {
+                // Rounds the same way Float.parseFloat does
+                floatValue = longValue;
+            } else if (mayBeFloat(value)) {
+                try {
+                    floatValue = Float.parseFloat(value);
+                    isFloat = true;
+                } catch (NumberFormatException e) {
+                    // Not a float
                 }
-            } else {
-                if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userHandle
-                        + " by user " + UserHandle.myUserId() + " so skipping cache");
             }
+            mIsFloat = isFloat;
+            mFloatValue = floatValue;
+        }
 
-            IContentProvider cp = lazyGetProvider(cr);
+        int getInt(int def) {
+            return mIsInt ? mIntValue : def;
+        }
 
-            // Try the fast path first, not using query().  If this
-            // fails (alternate Settings provider that doesn't support
-            // this interface?) then we fall back to the query/table
-            // interface.
-            if (mCallGetCommand != null) {
-                try {
-                    Bundle args = null;
-                    if (!isSelf) {
-                        args = new Bundle();
-                        args.putInt(CALL_METHOD_USER_KEY, userHandle);
-                    }
-                    Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
-                    if (b != null) {
-                        String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
-                        } else {
-                            if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userHandle
-                                    + " by " + UserHandle.myUserId()
-                                    + " so not updating cache");
-                        }
-                        return value;
+        int getInt(String name) throws AsylumSettingNotFoundException {
+            if (!mIsInt) {
+                throw new AsylumSettingNotFoundException(name);
+            }
+            return mIntValue;
+        }
+
+        long getLong(long def) {
+            return mIsLong ? mLongValue : def;
+        }
+
+        long getLong(String name) throws AsylumSettingNotFoundException {
+            if (!mIsLong) {
+                throw new AsylumSettingNotFoundException(name);
+            }
+            return mLongValue;
+        }
+
+        float getFloat(float def) {
+            return mIsFloat ? mFloatValue : def;
+        }
+
+        float getFloat(String name) throws AsylumSettingNotFoundException {
+            if (!mIsFloat) {
+                throw new AsylumSettingNotFoundException(name);
+            }
+            return mFloatValue;
+        }
+
+        /**
+         * Cheap check ruling out values {@link Long#parseLong} would certainly reject, so
+         * that caching non-numeric values doesn't pay for an exception.
+         */
+        private static boolean mayBeLong(String s) {
+            if (s == null) {
+                return false;
+            }
+            final int length = s.length();
+            int i = 0;
+            if (length > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+                i++;
+            }
+            if (i >= length) {
+                return false;
+            }
+            for (; i < length; i++) {
+                if (Character.digit(s.charAt(i), 10) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Cheap check ruling out values {@link Float#parseFloat} would certainly reject.
+         */
+        private static boolean mayBeFloat(String s) {
+            if (s == null) {
+                return false;
+            }
+            final int length = s.length();
+            int i = 0;
+            while (i < length && s.charAt(i) <= ' ') {
+                i++;
+            }
+            if (i < length && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                i++;
+            }
+            if (i >= length) {
+                return false;
+            }
+            final char c = s.charAt(i);
+            return (c >= '0' && c <= '9') || c == '.' || c == 'N' || c == 'I';
+        }
+    }
+
+    /**
+     * Resolves {@link UserHandle#USER_CURRENT} on the client side, so that reads for the
+     * current user are served from the cache of that user.  Follows user switches once the
+     * process first asks for the current user; processes not allowed to observe switches
+     * keep reading their own user, as the provider would resolve it for them.
+     */
+    private static final class CurrentUserTracker {
+        private static final Object sLock = new Object();
+
+        // UserHandle.USER_NULL until first needed
+        private static volatile int sCurrentUser = UserHandle.USER_NULL;
+
+        // Set once user switches are followed
+        private static volatile boolean sTracking;
+
+        // Guarded by sLock.  Run on every user switch.
+        private static final ArrayList<Runnable> sSwitchCallbacks = new ArrayList<Runnable>();
+
+        private static final IUserSwitchObserver sUserSwitchObserver =
+                new IUserSwitchObserver.Stub() {
+            @Override
+            public void onUserSwitching(int newUserId, IRemoteCallback reply) {
+                sCurrentUser = newUserId;
+                if (reply != null) {
+                    try {
+                        reply.sendResult(null);
+                    } catch (RemoteException e) {
+                        // Nothing to do, the switch goes on regardless
                     }
-                    // If the response Bundle is null, we fall through
-                    // to the query interface below.
-                } catch (RemoteException e) {
-                    // Not supported by the remote side?  Fall through
-                    // to query().
                 }
             }
+            @Override
+            public void onUserSwitchComplete(int newUserId) {
+                sCurrentUser = newUserId;
+                final Runnable[] callbacks;
+                synchronized (sLock) {
+                    callbacks = sSwitchCallbacks.toArray(new Runnable[sSwitchCallbacks.size()]);
+                }
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+            @Override
+            public void onForegroundProfileSwitch(int newProfileId) {
+            }
+            @Override
+            public void onLockedBootComplete(int newUserId) {
+            }
+        };
 
-            Cursor c = null;
-            try {
-                Bundle queryArgs = ContentResolver.createSqlQueryBundle(
-                        NAME_EQ_PLACEHOLDER, new String[]{name}, null);
-                c = cp.query(cr.getPackageName(), mUri, SELECT_VALUE_PROJECTION, queryArgs, null);
-                if (c == null) {
-                    Log.w(TAG, "Can't get key " + name + " from " + mUri);
-                    return null;
+        static int resolve(int userHandle) {
+            if (userHandle != UserHandle.USER_CURRENT
+                    && userHandle != UserHandle.USER_CURRENT_OR_SELF) {
+                return userHandle;
+            }
+            final int currentUser = sCurrentUser;
+            return currentUser != UserHandle.USER_NULL ? currentUser : startTracking();
+        }
+
+        private static int startTracking() {
+            synchronized (sLock) {
+                if (sCurrentUser == UserHandle.USER_NULL) {
+                    int currentUser = UserHandle.myUserId();
+                    try {
+                        // Register first so that no switch goes unnoticed
+                        ActivityManagerNative.getDefault().registerUserSwitchObserver(
+                                sUserSwitchObserver, TAG);
+                        currentUser = ActivityManager.getCurrentUser();
+                        sTracking = true;
+                    } catch (RemoteException | SecurityException e) {
+                        if (LOCAL_LOGV) Log.v(TAG, "Not following user switches", e);
+                    }
+                    sCurrentUser = currentUser;
                 }
+                return sCurrentUser;
+            }
+        }
 
-                String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
+        /**
+         * @return whether user switches are followed, starting to follow them if needed
+         */
+        static boolean isTracking() {
+            resolve(UserHandle.USER_CURRENT);
+            return sTracking;
+        }
+
+        /**
+         * Runs {@code callback} on the binder thread delivering each completed user switch.
+         */
+        static void addSwitchCallback(Runnable callback) {
+            synchronized (sLock) {
+                sSwitchCallbacks.add(callback);
+            }
+        }
+
+        static void removeSwitchCallback(Runnable callback) {
+            synchronized (sLock) {
+                sSwitchCallbacks.remove(callback);
+            }
+        }
+    }
+
+    /**
+     * Drops the client caches of users that stopped or were removed.  Registered the first
+     * time a process caches the settings of another user, which takes the same permission as
+     * listening to the broadcasts of all users.
+     */
+    private static final class UserStoppedReceiver extends BroadcastReceiver {
+        // Guarded by UserStoppedReceiver.class
+        private static boolean sRegistered;
+        // Guarded by UserStoppedReceiver.class.  Set if this process may not watch other
+        // users, which won't change, so we don't try again.
+        private static boolean sUnsupported;
+
+        static void ensureRegistered() {
+            synchronized (UserStoppedReceiver.class) {
+                if (sRegistered || sUnsupported) {
+                    return;
                 }
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
-                            name + " = " + (value == null ? "(null)" : value));
+                final Application application = ActivityThread.currentApplication();
+                if (application == null) {
+                    // Too early, try again with the next user cache
+                    return;
                 }
-                return value;
-            } catch (RemoteException e) {
-                Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
-                return null;  // Return null, but don't cache it.
-            } finally {
-                if (c != null) c.close();
+                final IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_USER_STOPPED);
+                filter.addAction(Intent.ACTION_USER_REMOVED);
+                try {
+                    application.registerReceiverAsUser(new UserStoppedReceiver(),
+                            UserHandle.ALL, filter, null, null);
+                    sRegistered = true;
+                } catch (SecurityException e) {
+                    Log.w(TAG, "Can't watch for stopped users, caches of other users are only"
+                            + " evicted least recently used first", e);
+                    sUnsupported = true;
+                }
+            }
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                    UserHandle.USER_NULL);
+            if (userId == UserHandle.USER_NULL) {
+                return;
+            }
+            System.sNameValueCache.evictUser(userId);
+            Secure.sNameValueCache.evictUser(userId);
+            Global.sNameValueCache.evictUser(userId);
+        }
+    }
+
+    /**
+     * Counts provider calls by how long they took, in fixed buckets.  Lock free, so it can
+     * be fed from every thread reading settings.
+     */
+    private static final class LatencyHistogram {
+        // Upper bounds of the buckets in microseconds; the last bucket takes everything above
+        private static final long[] BUCKET_LIMITS_US = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000
+        };
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_LIMITS_US.length + 1);
+
+        void record(long durationNanos) {
+            final long durationUs = durationNanos / 1000;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_US.length && durationUs >= BUCKET_LIMITS_US[bucket]) {
+                bucket++;
+            }
+            mCounts.incrementAndGet(bucket);
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            pw.print(prefix); pw.print("call latency (us):");
+            for (int i = 0; i < BUCKET_LIMITS_US.length; i++) {
+                pw.print(" <"); pw.print(BUCKET_LIMITS_US[i]); pw.print('=');
+                pw.print(mCounts.get(i));
+            }
+            pw.print(" >="); pw.print(BUCKET_LIMITS_US[BUCKET_LIMITS_US.length - 1]);
+            pw.print('='); pw.println(mCounts.get(BUCKET_LIMITS_US.length));
+        }
+    }
+
+    // Thread-safe.  Reads never block: every cached value is tagged with the generation of its
+    // key's bucket when it was read, and is served as long as that generation is current.  A
+    // write therefore only invalidates the keys sharing its bucket instead of the whole table.
+    // Every user gets a cache of its own; the calling user's is kept for the life of the
+    // process while the caches of other users are bounded and dropped once their user stops.
+    private static class NameValueCache {
+        // Caches kept for users other than the calling one, least recently used goes first
+        private static final int MAX_OTHER_USER_CACHES = 4;
+        // How often to check whether the provider was published while serving the boot snapshot
+        private static final long BOOT_SNAPSHOT_CHECK_INTERVAL_MS = 200;
+
+        private final String mVersionSystemProperty;
+        private final Uri mUri;
+        // False for tables shared by all users, which are then all served from one cache
+        private final boolean mPerUser;
+
+        private static final String[] SELECT_VALUE_PROJECTION =
+            new String[] { Settings.NameValueTable.VALUE };
+        private static final String NAME_EQ_PLACEHOLDER = "name=?";
+
+        private static final class PrefixEntry {
+            final Map<String, String> values;
+            final long generation;
+
+            PrefixEntry(Map<String, String> values, long generation) {
+                this.values = values;
+                this.generation = generation;
+            }
+        }
+
+        // The cached values along with where their generations come from.  Replaced as a
+        // whole when the source of generations changes, since generations of different
+        // sources can't be compared.
+        private static final class ValueStore {
+            // Null when generations come from the version system property
+            final GenerationTracker tracker;
+            final ConcurrentHashMap<String, CacheEntry> values =
+                    new ConcurrentHashMap<String, CacheEntry>();
+            // Prefix scans are cached as a unit against the generation of the bucket of their
+            // family, or of the whole table for prefixes shorter than a family, since a new
+            // key under such a prefix may land in any bucket.
+            final ConcurrentHashMap<String, PrefixEntry> prefixes =
+                    new ConcurrentHashMap<String, PrefixEntry>();
+            // Values of the keys declared with an ID, indexed by ID
+            final AtomicReferenceArray<CacheEntry> declared;
+
+            ValueStore(GenerationTracker tracker, int declaredCount) {
+                this.tracker = tracker;
+                this.declared = new AtomicReferenceArray<CacheEntry>(declaredCount);
+            }
+        }
+
+        // The cached values of one user.  The provider keeps separate generation counters per
+        // user, so each user tracks its own.
+        private final class UserCache {
+            final int userId;
+
+            volatile ValueStore store = newValueStore(null);
+
+            // Set once the provider has handed out a tracker.  Such a provider no longer bumps
+            // the version property, so without a tracker nothing may be cached.
+            volatile boolean providerTracksGenerations = false;
+
+            UserCache(int userId) {
+                this.userId = userId;
+            }
+
+            /**
+             * Returns the current generation of a key in {@code store}, read from the shared
+             * memory counters when the provider handed them out and from the version system
+             * property otherwise.  Returns -1 if no generation can be trusted right now.
+             */
+            long readGeneration(ValueStore store, String name) {
+                return readBucketGeneration(store, getGenerationBucket(name));
+            }
+
+            /**
+             * Same as {@link #readGeneration(ValueStore, String)} for the keys of a bucket.
+             */
+            long readBucketGeneration(ValueStore store, int bucket) {
+                if (store.tracker != null) {
+                    final int generation = store.tracker.getBucketGeneration(bucket);
+                    if (generation >= 0) {
+                        return generation;
+                    }
+                    destroyGenerationTracker(store);
+                    return -1;
+                }
+                if (providerTracksGenerations) {
+                    return -1;
+                }
+                return SystemProperties.getLong(mVersionSystemProperty, 0);
+            }
+
+            /**
+             * Same as {@link #readGeneration(ValueStore, String)} for the table as a whole.
+             */
+            long readTableGeneration(ValueStore store) {
+                if (store.tracker != null) {
+                    final int generation = store.tracker.getTableGeneration();
+                    if (generation >= 0) {
+                        return generation;
+                    }
+                    destroyGenerationTracker(store);
+                    return -1;
+                }
+                if (providerTracksGenerations) {
+                    return -1;
+                }
+                return SystemProperties.getLong(mVersionSystemProperty, 0);
+            }
+
+            /**
+             * @return the current generation of every bucket, or null if they can't be trusted
+             */
+            long[] readBucketGenerations(ValueStore store) {
+                final long[] generations = new long[GENERATION_BUCKET_COUNT];
+                if (store.tracker == null) {
+                    Arrays.fill(generations, readTableGeneration(store));
+                    return generations[0] >= 0 ? generations : null;
+                }
+                for (int i = 0; i < GENERATION_BUCKET_COUNT; i++) {
+                    generations[i] = store.tracker.getBucketGeneration(i);
+                    if (generations[i] < 0) {
+                        destroyGenerationTracker(store);
+                        return null;
+                    }
+                }
+                return generations;
+            }
+
+            void maybeInstallGenerationTracker(Bundle b) {
+                if (store.tracker != null || !b.containsKey(CALL_METHOD_TRACK_GENERATION_KEY)) {
+                    return;
+                }
+                final MemoryIntArray array = b.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY);
+                final int index = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+                if (array == null || index < 0) {
+                    return;
+                }
+                synchronized (this) {
+                    if (store.tracker != null) {
+                        return;
+                    }
+                    providerTracksGenerations = true;
+                    store = newValueStore(new GenerationTracker(array, index));
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "tracking generation [" + mUri.getLastPathSegment()
+                                + "] of user " + userId + " at index " + index);
+                    }
+                }
+            }
+
+            void destroyGenerationTracker(ValueStore old) {
+                synchronized (this) {
+                    if (store != old) {
+                        return;
+                    }
+                    store = newValueStore(null);
+                }
+                old.tracker.destroy();
+            }
+
+            /**
+             * Drops every cached value and releases the generation counters.
+             */
+            void destroy() {
+                final ValueStore old;
+                synchronized (this) {
+                    old = store;
+                    store = newValueStore(null);
+                }
+                if (old.tracker != null) {
+                    old.tracker.destroy();
+                }
+            }
+        }
+
+        private final UserCache mSelfCache;
+
+        // Caches of other users in access order, guarded by itself
+        private final LinkedHashMap<Integer, UserCache> mOtherUserCaches =
+                new LinkedHashMap<Integer, UserCache>(MAX_OTHER_USER_CACHES + 1, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, UserCache> eldest) {
+                        if (size() <= MAX_OTHER_USER_CACHES) {
+                            return false;
+                        }
+                        if (LOCAL_LOGV) {
+                            Log.v(TAG, "evict [" + mUri.getLastPathSegment() + "] of user "
+                                    + eldest.getKey());
+                        }
+                        eldest.getValue().destroy();
+                        return true;
+                    }
+                };
+
+        // Guarded by itself
+        private final ArrayMap<SettingsListener, ListenerTransport> mListeners =
+                new ArrayMap<SettingsListener, ListenerTransport>();
+
+        private final LongAdder mHits = new LongAdder();
+        // Hits on keys cached as not set, also counted as hits
+        private final LongAdder mNegativeHits = new LongAdder();
+        private final LongAdder mMisses = new LongAdder();
+        private final LongAdder mInvalidations = new LongAdder();
+        // Reads the provider couldn't serve through call() and that went through query()
+        private final LongAdder mQueryFallbacks = new LongAdder();
+        private final LatencyHistogram mCallLatency = new LatencyHistogram();
+
+        // Initially null; set lazily and held until the provider dies.
+        private volatile IContentProvider mContentProvider = null;
+
+        // Guarded by this.  Set when the provider died, until we reconnected to a new one.
+        private boolean mProviderDied;
+        private long mProviderDiedTime;
+
+        // Guarded by this.  Set once reads were served from the boot snapshot, until we
+        // switched over to the provider.
+        private boolean mServedFromBootSnapshot;
+        private final LongAdder mBootSnapshotReads = new LongAdder();
+
+        private final LongAdder mProviderDeaths = new LongAdder();
+        // Time from the death of the provider until caches and listeners were back in sync
+        private volatile long mLastRecoveryMillis = -1;
+
+        // The method we'll call (or null, to not use) on the provider
+        // for the fast path of retrieving settings.
+        private final String mCallGetCommand;
+        private final String mCallGetMultiCommand;
+        private final String mCallListCommand;
+        private final String mCallSetCommand;
+        private final String mCallSetMultiCommand;
+
+        // Names, defaults and generation buckets of the keys declared with an ID, indexed by ID
+        private final String[] mDeclaredKeys;
+        private final CacheEntry[] mDeclaredDefaults;
+        private final int[] mDeclaredBuckets;
+
+        public NameValueCache(String versionSystemProperty, Uri uri, boolean perUser,
+                KeySpec[] schema, String getCommand, String getMultiCommand,
+                String listCommand, String setCommand, String setMultiCommand) {
+            mVersionSystemProperty = versionSystemProperty;
+            mUri = uri;
+            mPerUser = perUser;
+            mDeclaredKeys = KeySpec.getNames(schema);
+            mDeclaredDefaults = new CacheEntry[schema.length];
+            mDeclaredBuckets = new int[mDeclaredKeys.length];
+            for (int i = 0; i < mDeclaredKeys.length; i++) {
+                mDeclaredDefaults[i] = schema[i].defaultEntry;
+                mDeclaredBuckets[i] = getGenerationBucket(mDeclaredKeys[i]);
+            }
+            mSelfCache = new UserCache(UserHandle.myUserId());
+            mCallGetCommand = getCommand;
+            mCallGetMultiCommand = getMultiCommand;
+            mCallListCommand = listCommand;
+            mCallSetCommand = setCommand;
+            mCallSetMultiCommand = setMultiCommand;
+        }
+
+        private ValueStore newValueStore(GenerationTracker tracker) {
+            return new ValueStore(tracker, mDeclaredKeys.length);
+        }
+
+        private IContentProvider lazyGetProvider(ContentResolver cr) {
+            IContentProvider cp = mContentProvider;
+            if (cp == null) {
+                boolean died = false;
+                boolean resync = false;
+                synchronized (this) {
+                    cp = mContentProvider;
+                    if (cp == null) {
+                        cp = cr.acquireProvider(mUri.getAuthority());
+                        if (cp != null && linkToProviderDeath(cp)) {
+                            mContentProvider = cp;
+                            // The provider serves every table from now on
+                            BootSettingsSnapshot.release();
+                            died = mProviderDied;
+                            resync = mProviderDied || mServedFromBootSnapshot;
+                            mProviderDied = false;
+                            mServedFromBootSnapshot = false;
+                        }
+                    }
+                }
+                if (resync) {
+                    onProviderReconnected(cr, died);
+                }
+            }
+            return cp;
+        }
+
+        private boolean linkToProviderDeath(final IContentProvider cp) {
+            try {
+                cp.asBinder().linkToDeath(new IBinder.DeathRecipient() {
+                    @Override
+                    public void binderDied() {
+                        onProviderDied(cp);
+                    }
+                }, 0);
+                return true;
+            } catch (RemoteException e) {
+                // Died before we got to hold it; the next call acquires a new one
+                return false;
+            }
+        }
+
+        /**
+         * Forgets a provider that died.  The caches keep serving their values meanwhile: with
+         * the provider gone nobody can change them, and its counters stay readable.  We
+         * reconnect right away, so that a restarted provider taking writes again is noticed
+         * quickly.
+         */
+        private void onProviderDied(IContentProvider cp) {
+            synchronized (this) {
+                if (mContentProvider != cp) {
+                    return;
+                }
+                mContentProvider = null;
+                if (!mProviderDied) {
+                    mProviderDied = true;
+                    mProviderDiedTime = SystemClock.elapsedRealtime();
+                }
+            }
+            mProviderDeaths.increment();
+            Log.w(TAG, "Provider of " + mUri + " died, reconnecting");
+
+            final Application app = ActivityThread.currentApplication();
+            if (app != null) {
+                final ContentResolver cr = app.getContentResolver();
+                BackgroundThread.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        lazyGetProvider(cr);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Returns the boot snapshot while reads have to be served from it because the
+         * provider isn't published yet, or null once the provider can be reached.  Only the
+         * background check finds out that it was published, so misses don't pay for an IPC.
+         */
+        private BootSettingsSnapshot getBootSnapshot(final ContentResolver cr) {
+            if (mContentProvider != null) {
+                return null;
+            }
+            final BootSettingsSnapshot snapshot = BootSettingsSnapshot.getForBoot();
+            if (snapshot == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (!mServedFromBootSnapshot) {
+                    mServedFromBootSnapshot = true;
+                    // Nobody may read again once the provider is up, so check for it until
+                    // we can switch over
+                    BackgroundThread.getHandler().postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Unlike acquireProvider(), doesn't wait for the provider to be
+                            // published
+                            final IContentProvider cp = cr.acquireExistingProvider(mUri);
+                            if (cp == null) {
+                                BackgroundThread.getHandler().postDelayed(this,
+                                        BOOT_SNAPSHOT_CHECK_INTERVAL_MS);
+                                return;
+                            }
+                            cr.releaseProvider(cp);
+                            lazyGetProvider(cr);
+                        }
+                    }, BOOT_SNAPSHOT_CHECK_INTERVAL_MS);
+                }
+            }
+            return snapshot;
+        }
+
+        /**
+         * Brings the caches and listeners in sync with a provider we weren't connected to.
+         * The counters of a restarted provider are new, so every cached key is read again
+         * under them; listener registrations died with the old provider, or were held back
+         * while serving the boot snapshot, and are made now.
+         * @param died whether a provider we were connected to died
+         */
+        private void onProviderReconnected(ContentResolver cr, boolean died) {
+            resyncUserCache(cr, mSelfCache);
+            final ArrayList<UserCache> otherCaches;
+            synchronized (mOtherUserCaches) {
+                otherCaches = new ArrayList<UserCache>(mOtherUserCaches.values());
+            }
+            for (UserCache cache : otherCaches) {
+                resyncUserCache(cr, cache);
+            }
+
+            final ArrayList<ListenerTransport> transports;
+            synchronized (mListeners) {
+                transports = new ArrayList<ListenerTransport>(mListeners.values());
+            }
+            for (ListenerTransport transport : transports) {
+                if (callRegisterListener(cr, transport)) {
+                    // Changes made while we weren't registered were missed
+                    transport.onSettingsChanged(transport.mUserHandle, -1, null, null, null);
+                }
+            }
+
+            if (!died) {
+                Log.i(TAG, "Switched from boot snapshot to provider of " + mUri);
+                return;
+            }
+            final long diedTime;
+            synchronized (this) {
+                diedTime = mProviderDiedTime;
+            }
+            mLastRecoveryMillis = SystemClock.elapsedRealtime() - diedTime;
+            Log.i(TAG, "Reconnected to provider of " + mUri + " after " + mLastRecoveryMillis
+                    + "ms");
+        }
+
+        /**
+         * Moves a user cache over to the counters of the new provider.  The cached keys are
+         * read again in one call that also hands out the new counters along with the
+         * generation of each key, and the values are cached under those.  The old values keep
+         * being served until the new store replaces them.
+         */
+        private void resyncUserCache(ContentResolver cr, UserCache cache) {
+            final ValueStore old = cache.store;
+            final ValueStore store = old.values.isEmpty() ? newValueStore(null)
+                    : readIntoNewStore(cr, cache.userId,
+                            old.values.keySet().toArray(new String[old.values.size()]));
+            final ValueStore replaced;
+            synchronized (cache) {
+                replaced = cache.store;
+                cache.store = store;
+                if (store.tracker != null) {
+                    cache.providerTracksGenerations = true;
+                }
+            }
+            if (old.tracker != null) {
+                old.tracker.destroy();
+            }
+            if (replaced != old && replaced.tracker != null) {
+                // Installed by a read racing with this one
+                replaced.tracker.destroy();
+            }
+        }
+
+        /**
+         * @return a store holding the values of {@code names} under the counters of the
+         *     provider, or an empty store without counters if the provider didn't hand any out
+         */
+        private ValueStore readIntoNewStore(ContentResolver cr, int userId, String[] names) {
+            if (mCallGetMultiCommand == null) {
+                return newValueStore(null);
+            }
+            final Bundle b;
+            try {
+                final Bundle args = new Bundle();
+                args.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                args.putInt(CALL_METHOD_USER_KEY, userId);
+                args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                b = lazyGetProvider(cr).call(cr.getPackageName(), mCallGetMultiCommand, null,
+                        args);
+                mCallLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't resync keys of " + mUri, e);
+                return newValueStore(null);
+            }
+            final MemoryIntArray array = b != null
+                    ? b.<MemoryIntArray>getParcelable(CALL_METHOD_TRACK_GENERATION_KEY) : null;
+            final int index = b != null ? b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1) : -1;
+            if (array == null || index < 0) {
+                return newValueStore(null);
+            }
+            final ValueStore store = newValueStore(new GenerationTracker(array, index));
+            final String[] values = b.getStringArray(CALL_METHOD_VALUES_KEY);
+            final int[] generations = b.getIntArray(CALL_METHOD_WRITE_GENERATIONS_KEY);
+            if (values != null && values.length == names.length && generations != null
+                    && generations.length == names.length) {
+                for (int i = 0; i < names.length; i++) {
+                    store.values.put(names[i], new CacheEntry(values[i], generations[i]));
+                }
+            }
+            return store;
+        }
+
+        /**
+         * @return the cache holding the values of {@code userHandle}, or null if reads for it
+         *     can't be cached.
+         */
+        private UserCache getUserCache(int userHandle) {
+            final int userId = mPerUser ? CurrentUserTracker.resolve(userHandle)
+                    : UserHandle.myUserId();
+            if (userId == mSelfCache.userId) {
+                return mSelfCache;
+            }
+            if (userId < 0) {
+                // USER_ALL and the like, leave it to the provider to make sense of them
+                return null;
+            }
+            synchronized (mOtherUserCaches) {
+                UserCache cache = mOtherUserCaches.get(userId);
+                if (cache == null) {
+                    cache = new UserCache(userId);
+                    mOtherUserCaches.put(userId, cache);
+                    UserStoppedReceiver.ensureRegistered();
+                }
+                return cache;
+            }
+        }
+
+        /**
+         * Drops the cache of a user that stopped or was removed.
+         */
+        void evictUser(int userId) {
+            final UserCache cache;
+            synchronized (mOtherUserCaches) {
+                cache = mOtherUserCaches.remove(userId);
+            }
+            if (cache != null) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "drop [" + mUri.getLastPathSegment() + "] of user " + userId);
+                }
+                cache.destroy();
+            }
+        }
+
+        /**
+         * @return the user to name in calls to the provider, which is the resolved user when
+         *     there is a cache for it.
+         */
+        private static int getTargetUser(UserCache cache, int userHandle) {
+            return cache != null ? cache.userId : userHandle;
+        }
+
+        public boolean putStringForUser(ContentResolver cr, String name, String value,
+                final int userHandle) {
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "put [" + mUri.getLastPathSegment() + "] " + name + " = " + value
+                        + " for user " + userHandle);
+            }
+            try {
+                final UserCache cache = getUserCache(userHandle);
+                final ValueStore store = cache != null ? cache.store : null;
+                Bundle arg = new Bundle();
+                arg.putString(Settings.NameValueTable.VALUE, value);
+                arg.putInt(CALL_METHOD_USER_KEY, userHandle);
+                if (store != null && store.tracker != null) {
+                    arg.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                }
+                IContentProvider cp = lazyGetProvider(cr);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                Bundle b = cp.call(cr.getPackageName(), mCallSetCommand, name, arg);
+                mCallLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+                if (isWriteFailed(b)) {
+                    Log.w(TAG, "Provider failed to set key " + name + " in " + mUri);
+                    return false;
+                }
+                if (store != null) {
+                    writeThrough(cache, store, b, new String[] { name }, new String[] { value });
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set key " + name + " in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Writes several keys in one provider transaction.
+         * @return false if the batch could not be written, in which case none of it was
+         */
+        public boolean putStringsForUser(ContentResolver cr, String[] names, String[] values,
+                final int userHandle) {
+            try {
+                final UserCache cache = getUserCache(userHandle);
+                final ValueStore store = cache != null ? cache.store : null;
+                Bundle args = new Bundle();
+                args.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                args.putStringArray(CALL_METHOD_VALUES_KEY, values);
+                args.putInt(CALL_METHOD_USER_KEY, userHandle);
+                if (store != null && store.tracker != null) {
+                    args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                }
+                IContentProvider cp = lazyGetProvider(cr);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                Bundle b = cp.call(cr.getPackageName(), mCallSetMultiCommand, null, args);
+                mCallLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+                if (isWriteFailed(b)) {
+                    Log.w(TAG, "Provider failed to set keys " + Arrays.toString(names) + " in "
+                            + mUri);
+                    return false;
+                }
+                if (store != null) {
+                    writeThrough(cache, store, b, names, values);
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set keys " + Arrays.toString(names) + " in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        private static boolean isWriteFailed(Bundle reply) {
+            return reply != null && reply.getBoolean(CALL_METHOD_WRITE_FAILED_KEY);
+        }
+
+        /**
+         * Caches values this process just wrote under the generations the provider published
+         * them with, so reading them back doesn't cost a round trip.  A later write by anyone
+         * bumps the generation past ours, which makes these entries stale as usual.  Only
+         * done when the reply refers to the counters of {@code store}, since generations of
+         * different counters can't be compared.
+         */
+        private void writeThrough(UserCache cache, ValueStore store, Bundle reply,
+                String[] names, String[] values) {
+            if (reply == null) {
+                return;
+            }
+            cacheValues(cache, store, reply.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1),
+                    reply.getIntArray(CALL_METHOD_WRITE_GENERATIONS_KEY), names, values);
+        }
+
+        /**
+         * Caches values along with the generations the provider published them under, if
+         * those are generations of the counters of {@code store}.  A value arriving late, e.g.
+         * a delayed push, doesn't replace an entry a read cached under a newer generation.
+         */
+        private void cacheValues(UserCache cache, ValueStore store, int generationIndex,
+                int[] generations, String[] names, String[] values) {
+            if (store.tracker == null || cache.store != store || generations == null
+                    || generations.length != names.length
+                    || generationIndex != store.tracker.getIndex()) {
+                return;
+            }
+            for (int i = 0; i < names.length; i++) {
+                final CacheEntry entry = new CacheEntry(values[i], generations[i]);
+                CacheEntry current = store.values.putIfAbsent(names[i], entry);
+                while (current != null && current.generation <= entry.generation
+                        && !store.values.replace(names[i], current, entry)) {
+                    current = store.values.putIfAbsent(names[i], entry);
+                }
+            }
+        }
+
+        /**
+         * Has the provider push the changes of this table to {@code listener}.
+         * @return false if the listener could not be registered
+         */
+        public boolean registerListener(ContentResolver cr, SettingsListener listener,
+                int userHandle) {
+            final ListenerTransport transport;
+            synchronized (mListeners) {
+                if (mListeners.containsKey(listener)) {
+                    return true;
+                }
+                transport = new ListenerTransport(listener, userHandle);
+                mListeners.put(listener, transport);
+            }
+            if (getBootSnapshot(cr) != null) {
+                // Registered once we switch over to the provider
+                return true;
+            }
+            if (!callRegisterListener(cr, transport)) {
+                synchronized (mListeners) {
+                    mListeners.remove(listener);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private boolean callRegisterListener(ContentResolver cr, ListenerTransport transport) {
+            try {
+                Bundle args = new Bundle();
+                args.putBinder(CALL_METHOD_LISTENER_KEY, transport.asBinder());
+                args.putInt(CALL_METHOD_USER_KEY, transport.mUserHandle);
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), CALL_METHOD_REGISTER_LISTENER,
+                        mUri.getLastPathSegment(), args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't register listener for " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        public void unregisterListener(ContentResolver cr, SettingsListener listener) {
+            final ListenerTransport transport;
+            synchronized (mListeners) {
+                transport = mListeners.remove(listener);
+            }
+            if (transport == null || getBootSnapshot(cr) != null) {
+                return;
+            }
+            try {
+                Bundle args = new Bundle();
+                args.putBinder(CALL_METHOD_LISTENER_KEY, transport.asBinder());
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), CALL_METHOD_UNREGISTER_LISTENER, null, args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't unregister listener for " + mUri, e);
+            }
+        }
+
+        /**
+         * @return the existing cache holding the values of {@code userId}, or null if there
+         *     is none.
+         */
+        private UserCache peekUserCache(int userId) {
+            if (!mPerUser || userId == mSelfCache.userId) {
+                return mSelfCache;
+            }
+            synchronized (mOtherUserCaches) {
+                return mOtherUserCaches.get(userId);
+            }
+        }
+
+        // Receives the changes pushed by the provider, caches the new values and then hands
+        // them to the listener on its handler
+        private final class ListenerTransport extends IAsylumSettingsListener.Stub {
+            private final SettingsListener mListener;
+            final int mUserHandle;
+
+            ListenerTransport(SettingsListener listener, int userHandle) {
+                mListener = listener;
+                mUserHandle = userHandle;
+            }
+
+            @Override
+            public void onSettingsChanged(final int userId, int generationIndex,
+                    final String[] names, final String[] values, int[] generations) {
+                if (names != null && values != null && values.length == names.length) {
+                    final UserCache cache = peekUserCache(userId);
+                    if (cache != null) {
+                        cacheValues(cache, cache.store, generationIndex, generations, names,
+                                values);
+                    }
+                }
+                mListener.mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onSettingsChanged(userId, names, values);
+                    }
+                });
+            }
+        }
+
+        public String getStringForUser(ContentResolver cr, String name, final int userHandle) {
+            return getEntryForUser(cr, name, userHandle).value;
+        }
+
+        /**
+         * Looks up a value along with its parsed forms.  Allocation free on cache hits.
+         * @return the entry, or {@link CacheEntry#NONE} if the value could not be read
+         */
+        public CacheEntry getEntryForUser(ContentResolver cr, String name, final int userHandle) {
+            final UserCache cache = getUserCache(userHandle);
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "get [" + mUri.getLastPathSegment() + "] " + name + " for user "
+                        + userHandle);
+            }
+
+            ValueStore store = null;
+            long generation = -1;
+            if (cache != null) {
+                store = cache.store;
+                generation = cache.readGeneration(store, name);
+                if (generation >= 0) {
+                    final CacheEntry entry = store.values.get(name);
+                    if (entry != null) {
+                        if (entry.generation == generation) {
+                            countHit(entry);
+                            // Value could be null, that's OK -- negative caching
+                            return entry;
+                        }
+                        mInvalidations.increment();
+                        if (LOCAL_LOGV) {
+                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "] " + name
+                                    + ": current " + generation + " != cached "
+                                    + entry.generation);
+                        }
+                    }
+                }
+                mMisses.increment();
+            } else {
+                if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userHandle
+                        + " by user " + UserHandle.myUserId() + " so skipping cache");
+            }
+
+            final BootSettingsSnapshot bootSnapshot = getBootSnapshot(cr);
+            if (bootSnapshot != null
+                    && bootSnapshot.covers(mUri.getLastPathSegment(), name,
+                            getTargetUser(cache, userHandle))) {
+                // Not cached, the provider may hold newer values once it is up
+                mBootSnapshotReads.increment();
+                return new CacheEntry(bootSnapshot.getString(mUri.getLastPathSegment(), name),
+                        -1);
+            }
+
+            IContentProvider cp = lazyGetProvider(cr);
+
+            // Try the fast path first, not using query().  If this
+            // fails (alternate Settings provider that doesn't support
+            // this interface?) then we fall back to the query/table
+            // interface.
+            if (mCallGetCommand != null) {
+                try {
+                    Bundle args = null;
+                    final int targetUser = getTargetUser(cache, userHandle);
+                    if (targetUser != UserHandle.myUserId()) {
+                        args = new Bundle();
+                        args.putInt(CALL_METHOD_USER_KEY, targetUser);
+                    }
+                    if (cache != null && store.tracker == null) {
+                        if (args == null) {
+                            args = new Bundle();
+                        }
+                        args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                    }
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
+                    mCallLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+                    if (b != null) {
+                        final CacheEntry entry = new CacheEntry(
+                                b.getString(Settings.NameValueTable.VALUE), generation);
+                        if (cache != null) {
+                            // The generation was read before the call, so a concurrent write
+                            // can only make this entry look stale, never fresh.
+                            if (generation >= 0) {
+                                store.values.put(name, entry);
+                            }
+                            cache.maybeInstallGenerationTracker(b);
+                        }
+                        return entry;
+                    }
+                    // If the response Bundle is null, we fall through
+                    // to the query interface below.
+                } catch (RemoteException e) {
+                    // Not supported by the remote side?  Fall through
+                    // to query().
+                }
+            }
+
+            Cursor c = null;
+            try {
+                Bundle queryArgs = ContentResolver.createSqlQueryBundle(
+                        NAME_EQ_PLACEHOLDER, new String[]{name}, null);
+                mQueryFallbacks.increment();
+                final long start = SystemClock.elapsedRealtimeNanos();
+                c = cp.query(cr.getPackageName(), mUri, SELECT_VALUE_PROJECTION, queryArgs, null);
+                mCallLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+                if (c == null) {
+                    Log.w(TAG, "Can't get key " + name + " from " + mUri);
+                    return CacheEntry.NONE;
+                }
+
+                String value = c.moveToNext() ? c.getString(0) : null;
+                final CacheEntry entry = new CacheEntry(value, generation);
+                // query() always reads the calling user, so only its cache can take the value
+                if (generation >= 0 && cache == mSelfCache) {
+                    store.values.put(name, entry);
+                }
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
+                            name + " = " + (value == null ? "(null)" : value));
+                }
+                return entry;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
+                return CacheEntry.NONE;  // Return null, but don't cache it.
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+
+        /**
+         * Looks up a key declared with an ID.  Neither hashes nor allocates on cache hits.
+         * @return the entry, or {@link CacheEntry#NONE} if the value could not be read
+         */
+        public CacheEntry getEntryForUser(ContentResolver cr, int keyId, final int userHandle) {
+            if (keyId < 0 || keyId >= mDeclaredKeys.length) {
+                throw new IllegalArgumentException("Unknown key id " + keyId + " in " + mUri);
+            }
+            final UserCache cache = getUserCache(userHandle);
+            if (cache == null) {
+                return getEntryForUser(cr, mDeclaredKeys[keyId], userHandle);
+            }
+
+            final ValueStore store = cache.store;
+            final long generation = cache.readBucketGeneration(store, mDeclaredBuckets[keyId]);
+            if (generation >= 0) {
+                final CacheEntry entry = store.declared.get(keyId);
+                if (entry != null && entry.generation == generation) {
+                    countHit(entry);
+                    return entry;
+                }
+            }
+
+            // Counted by the name based lookup
+            final CacheEntry entry = getEntryForUser(cr, mDeclaredKeys[keyId], userHandle);
+            // The name based lookup read its generation after ours, so its value is at least
+            // as recent as our generation says
+            if (generation >= 0 && entry.generation == generation) {
+                store.declared.set(keyId, entry);
+            }
+            return entry;
+        }
+
+        /**
+         * Looks up several keys at once.  Keys missing from the cache are fetched with a
+         * single provider call and cached in one step.
+         * @return the values in the order of {@code names}
+         */
+        public String[] getStringsForUser(ContentResolver cr, String[] names,
+                final int userHandle) {
+            final UserCache cache = getUserCache(userHandle);
+            final String[] values = new String[names.length];
+            // Keys served from the cache; the others are fetched from the provider
+            final boolean[] hits = new boolean[names.length];
+
+            ValueStore store = null;
+            long[] generations = null;
+            String[] missing = names;
+            // Counted once the misses are fetched together; the per-key fallback counts its own
+            int missingCount = 0;
+            int invalidationCount = 0;
+            if (cache != null) {
+                store = cache.store;
+                generations = new long[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    generations[i] = cache.readGeneration(store, names[i]);
+                    final CacheEntry entry = generations[i] >= 0
+                            ? store.values.get(names[i]) : null;
+                    if (entry != null && entry.generation == generations[i]) {
+                        countHit(entry);
+                        values[i] = entry.value;
+                        hits[i] = true;
+                    } else {
+                        if (entry != null) {
+                            invalidationCount++;
+                        }
+                        missingCount++;
+                    }
+                }
+                if (missingCount == 0) {
+                    return values;
+                }
+                if (missingCount != names.length) {
+                    missing = new String[missingCount];
+                    for (int i = 0, j = 0; i < names.length; i++) {
+                        if (!hits[i]) {
+                            missing[j++] = names[i];
+                        }
+                    }
+                }
+            }
+
+            final String[] fetched = callGetMulti(cr, missing, cache, userHandle,
+                    cache != null && store.tracker == null);
+            if (fetched != null) {
+                mMisses.add(missingCount);
+                mInvalidations.add(invalidationCount);
+            }
+            for (int i = 0, j = 0; i < names.length; i++) {
+                if (hits[i]) {
+                    continue;
+                }
+                if (fetched == null) {
+                    // Provider without multi-key support, look the key up on its own
+                    values[i] = getStringForUser(cr, names[i], userHandle);
+                    continue;
+                }
+                values[i] = fetched[j++];
+                // Same as for single gets, the generations were read before the call
+                if (cache != null && generations[i] >= 0) {
+                    store.values.put(names[i], new CacheEntry(values[i], generations[i]));
+                }
+            }
+            return values;
+        }
+
+        public Subscription observe(ContentResolver cr, String[] names, int userHandle,
+                Executor executor, SettingsObserver observer) {
+            final Subscription subscription = new Subscription(this, cr, names, null,
+                    userHandle, executor, observer);
+            subscription.start();
+            return subscription;
+        }
+
+        public Subscription observe(ContentResolver cr, int[] keyIds, int userHandle,
+                Executor executor, SettingsObserver observer) {
+            final String[] names = new String[keyIds.length];
+            for (int i = 0; i < keyIds.length; i++) {
+                if (keyIds[i] < 0 || keyIds[i] >= mDeclaredKeys.length) {
+                    throw new IllegalArgumentException("Unknown key id " + keyIds[i] + " in "
+                            + mUri);
+                }
+                names[i] = mDeclaredKeys[keyIds[i]];
+            }
+            final Subscription subscription = new Subscription(this, cr, names, keyIds,
+                    userHandle, executor, observer);
+            subscription.start();
+            return subscription;
+        }
+
+        /**
+         * Reads several keys at one state of the table.  Served from the cache when every key
+         * is cached and no write landed while checking them, otherwise all keys are fetched
+         * together in one provider read.
+         */
+        public Snapshot getSnapshot(ContentResolver cr, String[] names, final int userHandle) {
+            return getSnapshot(cr, names, null, null, userHandle);
+        }
+
+        /**
+         * Same as {@link #getSnapshot(ContentResolver, String[], int)} for keys declared with
+         * an ID, whose defaults the snapshot then knows.
+         */
+        public Snapshot getSnapshot(ContentResolver cr, int[] keyIds, final int userHandle) {
+            final String[] names = new String[keyIds.length];
+            final CacheEntry[] defaults = new CacheEntry[keyIds.length];
+            for (int i = 0; i < keyIds.length; i++) {
+                if (keyIds[i] < 0 || keyIds[i] >= mDeclaredKeys.length) {
+                    throw new IllegalArgumentException("Unknown key id " + keyIds[i] + " in "
+                            + mUri);
+                }
+                names[i] = mDeclaredKeys[keyIds[i]];
+                defaults[i] = mDeclaredDefaults[keyIds[i]];
+            }
+            return getSnapshot(cr, names, keyIds.clone(), defaults, userHandle);
+        }
+
+        private Snapshot getSnapshot(ContentResolver cr, String[] names, int[] keyIds,
+                CacheEntry[] defaults, final int userHandle) {
+            final UserCache cache = getUserCache(userHandle);
+            final CacheEntry[] entries = new CacheEntry[names.length];
+            names = names.clone();
+
+            ValueStore store = null;
+            long[] generations = null;
+            if (cache != null) {
+                store = cache.store;
+                generations = new long[names.length];
+                // Every write bumps the table generation, so if it didn't move while the
+                // entries were checked they all describe the same state of the table
+                final long tableGeneration = cache.readTableGeneration(store);
+                boolean complete = tableGeneration >= 0;
+                for (int i = 0; i < names.length; i++) {
+                    generations[i] = cache.readGeneration(store, names[i]);
+                    final CacheEntry entry = generations[i] >= 0
+                            ? store.values.get(names[i]) : null;
+                    if (entry == null || entry.generation != generations[i]) {
+                        complete = false;
+                    }
+                    entries[i] = entry;
+                }
+                if (complete && cache.readTableGeneration(store) == tableGeneration) {
+                    for (CacheEntry entry : entries) {
+                        countHit(entry);
+                    }
+                    return new Snapshot(names, entries, keyIds, defaults);
+                }
+            }
+
+            // A single provider read sees one committed state of the table
+            final String[] values = callGetMulti(cr, names, cache, userHandle,
+                    cache != null && store.tracker == null);
+            if (cache != null && values != null) {
+                // The per-key fallback below counts its own
+                mMisses.add(names.length);
+            }
+            for (int i = 0; i < names.length; i++) {
+                if (values == null) {
+                    // Provider without multi-key support; the best we can do is one key at a
+                    // time
+                    entries[i] = getEntryForUser(cr, names[i], userHandle);
+                    continue;
+                }
+                entries[i] = new CacheEntry(values[i], cache != null ? generations[i] : -1);
+                if (cache != null && generations[i] >= 0) {
+                    store.values.put(names[i], entries[i]);
+                }
+            }
+            return new Snapshot(names, entries, keyIds, defaults);
+        }
+
+        /**
+         * @return the values of {@code names} in order, or null if the provider can't serve
+         *     multi-key requests.
+         */
+        private String[] callGetMulti(ContentResolver cr, String[] names, UserCache cache,
+                int userHandle, boolean trackGeneration) {
+            if (mCallGetMultiCommand == null) {
+                return null;
+            }
+            if (getBootSnapshot(cr) != null) {
+                // Keys are looked up one at a time, which serves them from the snapshot
+                return null;
+            }
+            try {
+                final Bundle args = new Bundle();
+                args.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                args.putInt(CALL_METHOD_USER_KEY, getTargetUser(cache, userHandle));
+                if (trackGeneration) {
+                    args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                }
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final Bundle b = lazyGetProvider(cr).call(cr.getPackageName(),
+                        mCallGetMultiCommand, null, args);
+                mCallLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+                final String[] values = b != null ? b.getStringArray(CALL_METHOD_VALUES_KEY)
+                        : null;
+                if (values == null || values.length != names.length) {
+                    return null;
+                }
+                if (trackGeneration) {
+                    cache.maybeInstallGenerationTracker(b);
+                }
+                return values;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't get keys from " + mUri, e);
+            }
+            return null;
+        }
+
+        /**
+         * Looks up every key starting with {@code prefix} with a single provider call.  The
+         * result is cached as a unit until a key of its family changes, or anything in the
+         * table for a prefix shorter than a family, and its entries also fill the per-key
+         * cache.
+         * @return an unmodifiable map of the keys found to their values
+         */
+        public Map<String, String> getStringsForPrefix(ContentResolver cr, String prefix,
+                final int userHandle) {
+            final UserCache cache = getUserCache(userHandle);
+
+            ValueStore store = null;
+            long prefixGeneration = -1;
+            long[] bucketGenerations = null;
+            if (cache != null) {
+                store = cache.store;
+                final int prefixBucket = getPrefixGenerationBucket(prefix);
+                prefixGeneration = prefixBucket >= 0
+                        ? cache.readBucketGeneration(store, prefixBucket)
+                        : cache.readTableGeneration(store);
+                if (prefixGeneration >= 0) {
+                    final PrefixEntry entry = store.prefixes.get(prefix);
+                    if (entry != null) {
+                        if (entry.generation == prefixGeneration) {
+                            mHits.increment();
+                            return entry.values;
+                        }
+                        mInvalidations.increment();
+                    }
+                    // Read before the call, like for single gets
+                    bucketGenerations = cache.readBucketGenerations(store);
+                }
+                mMisses.increment();
+            }
+
+            final BootSettingsSnapshot bootSnapshot = getBootSnapshot(cr);
+            if (bootSnapshot != null
+                    && bootSnapshot.coversPrefix(mUri.getLastPathSegment(), prefix,
+                            getTargetUser(cache, userHandle))) {
+                mBootSnapshotReads.increment();
+                return bootSnapshot.getStringsForPrefix(mUri.getLastPathSegment(), prefix);
+            }
+
+            if (mCallListCommand == null) {
+                return Collections.emptyMap();
+            }
+            try {
+                final Bundle args = new Bundle();
+                args.putString(CALL_METHOD_PREFIX_KEY, prefix);
+                args.putInt(CALL_METHOD_USER_KEY, getTargetUser(cache, userHandle));
+                if (cache != null && store.tracker == null) {
+                    args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                }
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final Bundle b = lazyGetProvider(cr).call(cr.getPackageName(),
+                        mCallListCommand, null, args);
+                mCallLatency.record(SystemClock.elapsedRealtimeNanos() - start);
+                final String[] names = b != null ? b.getStringArray(CALL_METHOD_NAMES_KEY)
+                        : null;
+                final String[] values = b != null ? b.getStringArray(CALL_METHOD_VALUES_KEY)
+                        : null;
+                if (names == null || values == null || names.length != values.length) {
+                    Log.w(TAG, "Can't list keys with prefix " + prefix + " from " + mUri);
+                    return Collections.emptyMap();
+                }
+
+                final ArrayMap<String, String> result = new ArrayMap<String, String>(
+                        names.length);
+                for (int i = 0; i < names.length; i++) {
+                    result.put(names[i], values[i]);
+                }
+                final Map<String, String> unmodifiable = Collections.unmodifiableMap(result);
+                if (bucketGenerations != null) {
+                    store.prefixes.put(prefix, new PrefixEntry(unmodifiable, prefixGeneration));
+                    for (int i = 0; i < names.length; i++) {
+                        store.values.put(names[i], new CacheEntry(values[i],
+                                bucketGenerations[getGenerationBucket(names[i])]));
+                    }
+                }
+                if (cache != null) {
+                    cache.maybeInstallGenerationTracker(b);
+                }
+                return unmodifiable;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't list keys with prefix " + prefix + " from " + mUri, e);
+            }
+            return Collections.emptyMap();
+        }
+
+        private void countHit(CacheEntry entry) {
+            mHits.increment();
+            if (entry.value == null) {
+                mNegativeHits.increment();
+            }
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            final long hits = mHits.sum();
+            final long misses = mMisses.sum();
+            final long lookups = hits + misses;
+            pw.print(prefix); pw.print(mUri.getLastPathSegment());
+            pw.print(": hits="); pw.print(hits);
+            pw.print(" negativeHits="); pw.print(mNegativeHits.sum());
+            pw.print(" misses="); pw.print(misses);
+            pw.print(" invalidations="); pw.print(mInvalidations.sum());
+            pw.print(" queryFallbacks="); pw.print(mQueryFallbacks.sum());
+            pw.print(" providerDeaths="); pw.print(mProviderDeaths.sum());
+            pw.print(" bootSnapshotReads="); pw.print(mBootSnapshotReads.sum());
+            pw.print(" lastRecoveryMs="); pw.print(mLastRecoveryMillis);
+            pw.print(" hitRate="); pw.println(lookups > 0 ? (100 * hits / lookups) + "%" : "n/a");
+            mCallLatency.dump(pw, prefix + "  ");
+            dumpUserCache(pw, prefix + "  ", mSelfCache);
+            synchronized (mOtherUserCaches) {
+                for (UserCache cache : mOtherUserCaches.values()) {
+                    dumpUserCache(pw, prefix + "  ", cache);
+                }
+            }
+        }
+
+        private static void dumpUserCache(PrintWriter pw, String prefix, UserCache cache) {
+            final ValueStore store = cache.store;
+            pw.print(prefix); pw.print("user "); pw.print(cache.userId);
+            pw.print(": size="); pw.print(store.values.size());
+            pw.print(" tracked="); pw.println(store.tracker != null);
+        }
+    }
+
+    /**
+     * @hide - Dumps the counters and provider call latencies of the client-side caches of
+     * this process.  Meant for the dumpsys output of the processes using them.
+     */
+    public static void dumpCacheStats(PrintWriter pw) {
+        pw.println("AsylumSettings caches:");
+        System.sNameValueCache.dump(pw, "  ");
+        Secure.sNameValueCache.dump(pw, "  ");
+        Global.sNameValueCache.dump(pw, "  ");
+    }
+
+    /**
+     * Receives the changes of a settings table together with their new values, pushed by the
+     * provider in one call per write.  The new values are already in the cache of this process
+     * when {@link #onSettingsChanged} runs, so reading them back costs no round trip.
+     */
+    public static abstract class SettingsListener {
+        final Handler mHandler;
+
+        /**
+         * @param handler The handler to run {@link #onSettingsChanged} on.
+         */
+        public SettingsListener(Handler handler) {
+            mHandler = handler;
+        }
+
+        /**
+         * @param userId the user the settings changed for; the owner for global settings, or
+         *     the user the listener was registered for when changes may have been missed
+         * @param names the changed settings, or null if any setting of the table may have
+         *     changed
+         * @param values the new values in the order of {@code names}, or null along with
+         *     {@code names}
+         */
+        public abstract void onSettingsChanged(int userId, String[] names, String[] values);
+    }
+
+    /**
+     * Receives the values of observed settings, see the {@code observe()} methods of the
+     * tables.
+     */
+    public interface SettingsObserver {
+        /**
+         * @param settings the current values of the observed keys, all read at one state of
+         *     the table
+         */
+        void onSettingsChanged(Snapshot settings);
+    }
+
+    /**
+     * An observation of several keys of a table, returned by the {@code observe()} methods of
+     * the tables.  Delivers the values of the keys once right away and then whenever they
+     * change.  A burst of changes is coalesced into one delivery per
+     * {@link #COALESCING_INTERVAL_MS}, and nothing is delivered when the values end up where
+     * they were.  Observations of the current user follow user switches.
+     */
+    public static final class Subscription {
+        /**
+         * Changes landing within this interval, about one frame, are delivered together.
+         */
+        public static final long COALESCING_INTERVAL_MS = 16;
+
+        private final NameValueCache mCache;
+        private final ContentResolver mResolver;
+        private final String[] mNames;
+        // Null when observing keys by name
+        private final int[] mKeyIds;
+        private final int mUserHandle;
+        private final Executor mExecutor;
+        private final SettingsObserver mObserver;
+
+        // Everything but cancel() runs on this handler
+        private final Handler mHandler = BackgroundThread.getHandler();
+
+        private volatile boolean mCancelled;
+
+        // Only touched on mHandler
+        private boolean mDeliveryScheduled;
+        private Snapshot mLastSettings;
+
+        private final SettingsListener mListener = new SettingsListener(mHandler) {
+            @Override
+            public void onSettingsChanged(int userId, String[] names, String[] values) {
+                if (names != null && !containsAny(names, mNames)) {
+                    return;
+                }
+                if (names != null && mCache.mPerUser
+                        && userId != CurrentUserTracker.resolve(mUserHandle)) {
+                    return;
+                }
+                scheduleDelivery(COALESCING_INTERVAL_MS);
+            }
+        };
+
+        private final Runnable mUserSwitchCallback = new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduleDelivery(0);
+                    }
+                });
+            }
+        };
+
+        private final Runnable mDeliver = new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+
+        private Subscription(NameValueCache cache, ContentResolver resolver, String[] names,
+                int[] keyIds, int userHandle, Executor executor, SettingsObserver observer) {
+            mCache = cache;
+            mResolver = resolver;
+            mNames = names.clone();
+            mKeyIds = keyIds != null ? keyIds.clone() : null;
+            mUserHandle = userHandle;
+            mExecutor = executor;
+            mObserver = observer;
+        }
+
+        private void start() {
+            int listenUser = mUserHandle;
+            if (mUserHandle == UserHandle.USER_CURRENT && mCache.mPerUser) {
+                if (CurrentUserTracker.isTracking()) {
+                    listenUser = UserHandle.USER_ALL;
+                    CurrentUserTracker.addSwitchCallback(mUserSwitchCallback);
+                } else {
+                    listenUser = UserHandle.myUserId();
+                }
+            }
+            if (!mCache.registerListener(mResolver, mListener, listenUser)) {
+                Log.w(TAG, "Only delivering the current values of " + Arrays.toString(mNames));
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleDelivery(0);
+                }
+            });
+        }
+
+        /**
+         * Stops the observation.  Nothing is delivered once this returned, except for a
+         * delivery the executor is running already.
+         */
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            CurrentUserTracker.removeSwitchCallback(mUserSwitchCallback);
+            mCache.unregisterListener(mResolver, mListener);
+            mHandler.removeCallbacks(mDeliver);
+        }
+
+        private void scheduleDelivery(long delayMillis) {
+            if (mDeliveryScheduled || mCancelled) {
+                return;
+            }
+            mDeliveryScheduled = true;
+            mHandler.postDelayed(mDeliver, delayMillis);
+        }
+
+        private void deliver() {
+            mDeliveryScheduled = false;
+            if (mCancelled) {
+                return;
+            }
+            // The listener cached the new values, so this is served without a round trip
+            final Snapshot settings = mKeyIds != null
+                    ? mCache.getSnapshot(mResolver, mKeyIds, mUserHandle)
+                    : mCache.getSnapshot(mResolver, mNames, mUserHandle);
+            if (settings.equals(mLastSettings)) {
+                return;
+            }
+            mLastSettings = settings;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mObserver.onSettingsChanged(settings);
+                    }
+                }
+            });
+        }
+
+        private static boolean containsAny(String[] names, String[] observed) {
+            for (String name : names) {
+                if (ArrayUtils.contains(observed, name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Interned content URIs of the keys of one table, along with the reverse mapping so that
+     * {@link android.database.ContentObserver#onChange(boolean, Uri)} handlers can tell which
+     * key changed without parsing the path.  Lock free, since observers look their URIs up
+     * over and over.  Bounded; once full, further URIs are built on every call instead.
+     */
+    private static final class UriCache {
+        private static final int MAX_SIZE = 128;
+
+        private final Uri mContentUri;
+
+        private final ConcurrentHashMap<String, Uri> mUris = new ConcurrentHashMap<String, Uri>();
+        private final ConcurrentHashMap<Uri, String> mNames =
+                new ConcurrentHashMap<Uri, String>();
+
+        UriCache(Uri contentUri) {
+            mContentUri = contentUri;
+        }
+
+        Uri getUri(String name) {
+            Uri uri = mUris.get(name);
+            if (uri != null) {
+                return uri;
+            }
+            uri = Settings.NameValueTable.getUriFor(mContentUri, name);
+            // Racing callers may overshoot the bound a little, which is harmless
+            if (mUris.size() < MAX_SIZE) {
+                final Uri existing = mUris.putIfAbsent(name, uri);
+                if (existing != null) {
+                    return existing;
+                }
+                mNames.put(uri, name);
+            }
+            return uri;
+        }
+
+        /**
+         * Returns the key a URI of this table points at, or null if it isn't a key URI of
+         * this table.
+         */
+        String getName(Uri uri) {
+            if (uri == null) {
+                return null;
+            }
+            final String name = mNames.get(uri);
+            if (name != null) {
+                return name;
+            }
+            // Not handed out by us, e.g. built by hand; fall back to looking at the path
+            final List<String> segments = uri.getPathSegments();
+            final List<String> tableSegments = mContentUri.getPathSegments();
+            if (!Objects.equals(uri.getScheme(), mContentUri.getScheme())
+                    || !Objects.equals(uri.getAuthority(), mContentUri.getAuthority())
+                    || segments.size() != tableSegments.size() + 1
+                    || !segments.subList(0, tableSegments.size()).equals(tableSegments)) {
+                return null;
+            }
+            return segments.get(tableSegments.size());
+        }
+    }
+
+    /**
+     * Where a key that moved out of its table lives now.  Each table resolves names through a
+     * single immutable map of these, shared by its getters, setters and uri lookups, so a key
+     * that didn't move costs one lookup.
+     */
+    private static final class MovedKey {
+        static final int TO_SYSTEM = 0;
+        static final int TO_SECURE = 1;
+        static final int TO_GLOBAL = 2;
+        static final int TO_LOCK_SETTINGS = 3;
+
+        // Each moved key is warned about at most this often
+        private static final long WARNING_INTERVAL_MS = 60 * 1000;
+
+        private static final String[] TABLE_NAMES = {
+            "android.provider.Settings.System",
+            "android.provider.Settings.Secure",
+            "android.provider.Settings.Global",
+            "lock settings",
+        };
+
+        final String name;
+        final int from;
+        final int target;
+        // Whether writes are forwarded to the new table or refused
+        final boolean forwardWrites;
+
+        private volatile long mNextWarningTime;
+
+        private MovedKey(String name, int from, int target, boolean forwardWrites) {
+            this.name = name;
+            this.from = from;
+            this.target = target;
+            this.forwardWrites = forwardWrites;
+        }
+
+        static void addAll(Map<String, MovedKey> outMovedKeys, Set<String> names, int from,
+                int target, boolean forwardWrites) {
+            for (String name : names) {
+                outMovedKeys.put(name, new MovedKey(name, from, target, forwardWrites));
+            }
+        }
+
+        CacheEntry getEntryForUser(ContentResolver resolver, int userHandle) {
+            warn("returning read-only value.");
+            switch (target) {
+                case TO_SYSTEM:
+                    return System.getEntryForUser(resolver, name, userHandle);
+                case TO_SECURE:
+                    return Secure.getEntryForUser(resolver, name, userHandle);
+                default:
+                    return Global.getEntryForUser(resolver, name, userHandle);
+            }
+        }
+
+        boolean putStringForUser(ContentResolver resolver, String value, int userHandle) {
+            if (!forwardWrites) {
+                warn("value is unchanged.");
+                return false;
+            }
+            warn("forwarding the write.");
+            switch (target) {
+                case TO_SYSTEM:
+                    return System.putStringForUser(resolver, name, value, userHandle);
+                case TO_SECURE:
+                    return Secure.putStringForUser(resolver, name, value, userHandle);
+                default:
+                    return Global.putStringForUser(resolver, name, value, userHandle);
+            }
+        }
+
+        Uri getUri() {
+            warn("returning its new URI.");
+            return getTargetUriCache().getUri(name);
+        }
+
+        private UriCache getTargetUriCache() {
+            switch (target) {
+                case TO_SYSTEM:
+                    return System.sUriCache;
+                case TO_SECURE:
+                    return Secure.sUriCache;
+                default:
+                    return Global.sUriCache;
+            }
+        }
+
+        /**
+         * Returns the name of the key in {@code movedKeys} whose new URI is {@code uri}, if any.
+         */
+        /**
+         * @return the moved key of each key of a table schema, or null for those that didn't
+         *     move, indexed by ID
+         */
+        static MovedKey[] forSchema(Map<String, MovedKey> movedKeys, KeySpec[] schema) {
+            final MovedKey[] result = new MovedKey[schema.length];
+            for (int i = 0; i < schema.length; i++) {
+                result[i] = movedKeys.get(schema[i].name);
+            }
+            return result;
+        }
+
+        static String getNameFor(Map<String, MovedKey> movedKeys, Uri uri) {
+            if (movedKeys.isEmpty()) {
+                return null;
+            }
+            final UriCache[] uriCaches = {
+                System.sUriCache, Secure.sUriCache, Global.sUriCache
+            };
+            for (UriCache uriCache : uriCaches) {
+                final String name = uriCache.getName(uri);
+                if (name != null) {
+                    final MovedKey moved = movedKeys.get(name);
+                    return moved != null && moved.getTargetUriCache() == uriCache ? name : null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Logs that the key moved, unless that was logged recently.
+         */
+        private void warn(String consequence) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now < mNextWarningTime) {
+                return;
+            }
+            mNextWarningTime = now + WARNING_INTERVAL_MS;
+            Log.w(TAG, "Setting " + name + " has moved from " + TABLE_NAMES[from] + " to "
+                    + TABLE_NAMES[target] + ", " + consequence);
+        }
+    }
+
+    /**
+     * A batch of changes to one settings table, written in a single provider transaction by
+     * {@link #commit()}.  Observers see all the changes at once, and the observers of each
+     * changed key are notified on its own uri.  Obtained from the {@code edit()} methods of
+     * the tables; not thread-safe.
+     */
+    public static final class Editor {
+        private final NameValueCache mNameValueCache;
+        private final ContentResolver mResolver;
+        private final int mUserHandle;
+        // Keys that moved to another table; the editor can't forward them without splitting
+        // the transaction, so it refuses them
+        private final Set<String> mMovedKeys;
+
+        private final ArrayMap<String, String> mChanges = new ArrayMap<String, String>();
+
+        private Editor(NameValueCache nameValueCache, ContentResolver resolver, int userHandle,
+                Set<String> movedKeys) {
+            mNameValueCache = nameValueCache;
+            mResolver = resolver;
+            mUserHandle = userHandle;
+            mMovedKeys = movedKeys;
+        }
+
+        /**
+         * Sets a value, replacing any value set earlier for the same name in this batch.
+         * @return this editor, to chain calls
+         * @throws IllegalArgumentException if the setting moved to another table, which the
+         *     batch can't write to; set it through its new table instead
+         */
+        public Editor putString(String name, String value) {
+            if (mMovedKeys.contains(name)) {
+                throw new IllegalArgumentException("Setting " + name
+                        + " has moved to another table, can't change it in a batch");
+            }
+            mChanges.put(name, value);
+            return this;
+        }
+
+        public Editor putInt(String name, int value) {
+            return putString(name, Integer.toString(value));
+        }
+
+        public Editor putLong(String name, long value) {
+            return putString(name, Long.toString(value));
+        }
+
+        public Editor putFloat(String name, float value) {
+            return putString(name, Float.toString(value));
+        }
+
+        /**
+         * Writes every change of the batch at once.  The editor is empty afterwards and can be
+         * reused.
+         * @return true if the changes were written, false if none of them was
+         */
+        public boolean commit() {
+            final int size = mChanges.size();
+            if (size == 0) {
+                return true;
+            }
+            final String[] names = new String[size];
+            final String[] values = new String[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = mChanges.keyAt(i);
+                values[i] = mChanges.valueAt(i);
+            }
+            mChanges.clear();
+            return mNameValueCache.putStringsForUser(mResolver, names, values, mUserHandle);
+        }
+    }
+
+    /**
+     * Values of several settings of one table, all read at the same state of the table, so a
+     * write changing several of them at once is seen either entirely or not at all.  Obtained
+     * from the {@code getSnapshot()} methods of the tables.  Two snapshots of the same keys are
+     * equal when their values are, which lets callers skip work when nothing changed.
+     */
+    public static final class Snapshot {
+        private final String[] mNames;
+        private final CacheEntry[] mEntries;
+        // Null for snapshots of keys given by name
+        private final int[] mKeyIds;
+        private final CacheEntry[] mDefaults;
+
+        private Snapshot(String[] names, CacheEntry[] entries, int[] keyIds,
+                CacheEntry[] defaults) {
+            mNames = names;
+            mEntries = entries;
+            mKeyIds = keyIds;
+            mDefaults = defaults;
+        }
+
+        private CacheEntry getEntry(String name) {
+            for (int i = 0; i < mNames.length; i++) {
+                if (mNames[i].equals(name)) {
+                    return mEntries[i];
+                }
+            }
+            throw new IllegalArgumentException(name + " is not part of the snapshot");
+        }
+
+        private int indexOf(int keyId) {
+            if (mKeyIds != null) {
+                for (int i = 0; i < mKeyIds.length; i++) {
+                    if (mKeyIds[i] == keyId) {
+                        return i;
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Key id " + keyId + " is not part of the snapshot");
+        }
+
+        /**
+         * @return the value of {@code name}, or null if it is not set
+         * @throws IllegalArgumentException if the snapshot wasn't taken of {@code name}
+         */
+        public String getString(String name) {
+            return getEntry(name).value;
+        }
+
+        public int getInt(String name, int def) {
+            return getEntry(name).getInt(def);
+        }
+
+        public long getLong(String name, long def) {
+            return getEntry(name).getLong(def);
+        }
+
+        public float getFloat(String name, float def) {
+            return getEntry(name).getFloat(def);
+        }
+
+        /**
+         * @return the value of a key declared with an ID, or its declared default if it is
+         *     not set
+         * @throws IllegalArgumentException if the snapshot wasn't taken of {@code keyId}
+         */
+        public String getString(int keyId) {
+            final int i = indexOf(keyId);
+            return mEntries[i].value != null ? mEntries[i].value : mDefaults[i].value;
+        }
+
+        public int getInt(int keyId) {
+            final int i = indexOf(keyId);
+            return mEntries[i].getInt(mDefaults[i].getInt(0));
+        }
+
+        public long getLong(int keyId) {
+            final int i = indexOf(keyId);
+            return mEntries[i].getLong(mDefaults[i].getLong(0));
+        }
+
+        public float getFloat(int keyId) {
+            final int i = indexOf(keyId);
+            return mEntries[i].getFloat(mDefaults[i].getFloat(0));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Snapshot)) {
+                return false;
+            }
+            final Snapshot other = (Snapshot) o;
+            if (!Arrays.equals(mNames, other.mNames)) {
+                return false;
+            }
+            for (int i = 0; i < mEntries.length; i++) {
+                if (!Objects.equals(mEntries[i].value, other.mEntries[i].value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Arrays.hashCode(mNames);
+            for (CacheEntry entry : mEntries) {
+                hash = 31 * hash + Objects.hashCode(entry.value);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * System settings, containing miscellaneous system preferences.  This
+     * table holds simple name/value pairs.  There are convenience
+     * functions for accessing individual settings entries.
+     */
+    public static final class System extends Settings.NameValueTable
+            implements AsylumSettingsKeys.System {
+        public static final String SYS_PROP_ASYLUM_SETTING_VERSION
+                = "sys.asylumsetting_system_version";
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI =
+            Uri.parse("content://" + AUTHORITY + "/system");
+
+        private static final UriCache sUriCache = new UriCache(CONTENT_URI);
+
+        /**
+         * Type and default value of every key declared with an ID, indexed by ID.
+         */
+        private static final KeySpec[] SCHEMA = KeySpec.checkSchema(new KeySpec[] {
+        });
+
+        /**
+         * Prefixes of the keys kept in the {@link BootSettingsSnapshot}, which system_server
+         * reads before the provider is published: the hardware key bindings.
+         * @hide
+         */
+        public static final String[] BOOT_SNAPSHOT_PREFIXES = { "key_" };
+
+        private static final NameValueCache sNameValueCache = new NameValueCache(
+                SYS_PROP_ASYLUM_SETTING_VERSION,
+                CONTENT_URI,
+                true,
+                SCHEMA,
+                CALL_METHOD_GET_SYSTEM,
+                CALL_METHOD_GET_MULTI_SYSTEM,
+                CALL_METHOD_LIST_SYSTEM,
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_PUT_MULTI_SYSTEM);
+
+        private static final HashSet<String> MOVED_TO_SECURE;
+        static {
+            MOVED_TO_SECURE = new HashSet<String>(30);
+        }
+
+        private static final HashSet<String> MOVED_TO_GLOBAL;
+        private static final HashSet<String> MOVED_TO_SECURE_THEN_GLOBAL;
+        static {
+            MOVED_TO_GLOBAL = new HashSet<String>();
+            MOVED_TO_SECURE_THEN_GLOBAL = new HashSet<String>();
+        }
+
+        // Where every key that moved out of this table lives now
+        private static final Map<String, MovedKey> MOVED_KEYS;
+        static {
+            final HashMap<String, MovedKey> movedKeys = new HashMap<String, MovedKey>();
+            MovedKey.addAll(movedKeys, MOVED_TO_SECURE, MovedKey.TO_SYSTEM, MovedKey.TO_SECURE,
+                    false);
+            MovedKey.addAll(movedKeys, MOVED_TO_GLOBAL, MovedKey.TO_SYSTEM, MovedKey.TO_GLOBAL,
+                    false);
+            MovedKey.addAll(movedKeys, MOVED_TO_SECURE_THEN_GLOBAL, MovedKey.TO_SYSTEM,
+                    MovedKey.TO_GLOBAL, false);
+            MOVED_KEYS = Collections.unmodifiableMap(movedKeys);
+        }
+
+        // The entries of MOVED_KEYS for the keys declared with an ID, indexed by ID
+        private static final MovedKey[] MOVED_DECLARED_KEYS = MovedKey.forSchema(MOVED_KEYS,
+                SCHEMA);
+
+        /** @hide */
+        public static void getMovedToGlobalSettings(Set<String> outKeySet) {
+            outKeySet.addAll(MOVED_TO_GLOBAL);
+            outKeySet.addAll(MOVED_TO_SECURE_THEN_GLOBAL);
+        }
+
+        /** @hide */
+        public static void getMovedToSecureSettings(Set<String> outKeySet) {
+            outKeySet.addAll(MOVED_TO_SECURE);
+        }
+
+        /** @hide */
+        public static void getNonLegacyMovedKeys(HashSet<String> outKeySet) {
+            outKeySet.addAll(MOVED_TO_GLOBAL);
+        }
+
+        /**
+         * Look up a name in the database.
+         * @param resolver to access the database with
+         * @param name to look up in the table
+         * @return the corresponding value, or null if not present
+         */
+        public static String getString(ContentResolver resolver, String name) {
+            return getStringForUser(resolver, name, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String getStringForUser(ContentResolver resolver, String name,
+                int userHandle) {
+            return getEntryForUser(resolver, name, userHandle).value;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver, String name,
+                int userHandle) {
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null) {
+                return moved.getEntryForUser(resolver, userHandle);
+            }
+            return sNameValueCache.getEntryForUser(resolver, name, userHandle);
+        }
+
+        /**
+         * Look up several names at a single state of the database, so that a write changing
+         * several of them at once is seen entirely or not at all.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the values of {@code names}
+         * @throws IllegalArgumentException if one of the names moved to another table
+         */
+        public static Snapshot getSnapshot(ContentResolver resolver, String... names) {
+            return getSnapshotForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Snapshot getSnapshotForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    throw new IllegalArgumentException("Setting " + name + " has moved to"
+                            + " another table and can't be part of a snapshot");
+                }
+            }
+            return sNameValueCache.getSnapshot(resolver, names, userHandle);
+        }
+
+        /**
+         * Same as {@link #getSnapshot(ContentResolver, String...)} for keys declared with an
+         * ID.  Unset keys read as their declared defaults.
+         * @param resolver to access the database with
+         * @param keyIds the IDs of the keys to look up
+         */
+        public static Snapshot getSnapshot(ContentResolver resolver, int... keyIds) {
+            return getSnapshotForUser(resolver, keyIds, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Snapshot getSnapshotForUser(ContentResolver resolver, int[] keyIds,
+                int userHandle) {
+            return sNameValueCache.getSnapshot(resolver, keyIds, userHandle);
+        }
+
+        /**
+         * Delivers the values of several keys now and whenever they change, coalescing bursts
+         * of changes.  Follows the current user where this process may, its own user
+         * otherwise.
+         * @param resolver to access the database with
+         * @param names to observe
+         * @param executor to run {@code observer} on
+         * @return the subscription, to cancel when the values aren't needed anymore
+         * @throws IllegalArgumentException if one of the names moved to another table
+         */
+        public static Subscription observe(ContentResolver resolver, String[] names,
+                Executor executor, SettingsObserver observer) {
+            return observeForUser(resolver, names, UserHandle.USER_CURRENT, executor, observer);
+        }
+
+        /** @hide */
+        public static Subscription observeForUser(ContentResolver resolver, String[] names,
+                int userHandle, Executor executor, SettingsObserver observer) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    throw new IllegalArgumentException("Setting " + name + " has moved to"
+                            + " another table and can't be observed here");
+                }
+            }
+            return sNameValueCache.observe(resolver, names, userHandle, executor, observer);
+        }
+
+        /**
+         * Same as {@link #observe(ContentResolver, String[], Executor, SettingsObserver)} for
+         * keys declared with an ID, whose values can then be read by ID with their defaults.
+         */
+        public static Subscription observe(ContentResolver resolver, int[] keyIds,
+                Executor executor, SettingsObserver observer) {
+            return observeForUser(resolver, keyIds, UserHandle.USER_CURRENT, executor,
+                    observer);
+        }
+
+        /** @hide */
+        public static Subscription observeForUser(ContentResolver resolver, int[] keyIds,
+                int userHandle, Executor executor, SettingsObserver observer) {
+            return sNameValueCache.observe(resolver, keyIds, userHandle, executor, observer);
+        }
+
+        /**
+         * Look up several names in the database with a single round trip.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the order of {@code names}, with null for
+         * names that are not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    // Moved settings live in other tables, keep them on the single key path
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userHandle);
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userHandle);
+        }
+
+        /**
+         * Look up every name starting with a prefix with a single round trip, e.g. all
+         * bindings of a key family.
+         * @param resolver to access the database with
+         * @param prefix the names have to start with
+         * @return an unmodifiable map of the names found to their values
+         */
+        public static Map<String, String> getStringsForPrefix(ContentResolver resolver,
+                String prefix) {
+            return getStringsForPrefixForUser(resolver, prefix, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsForPrefixForUser(ContentResolver resolver,
+                String prefix, int userHandle) {
+            return sNameValueCache.getStringsForPrefix(resolver, prefix, userHandle);
+        }
+
+        /**
+         * @hide - Reads an integer key declared with an ID, falling back to its default in
+         * the schema when the key is unset or malformed.
+         */
+        public static int getIntById(ContentResolver cr, int keyId) {
+            return getIntByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int getIntByIdForUser(ContentResolver cr, int keyId, int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getInt(SCHEMA[keyId].defaultEntry.getInt(0));
+        }
+
+        /**
+         * @hide - Same as {@link #getIntById(ContentResolver, int)} for long keys.
+         */
+        public static long getLongById(ContentResolver cr, int keyId) {
+            return getLongByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long getLongByIdForUser(ContentResolver cr, int keyId, int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getLong(SCHEMA[keyId].defaultEntry.getLong(0));
+        }
+
+        /**
+         * @hide - Same as {@link #getIntById(ContentResolver, int)} for float keys.
+         */
+        public static float getFloatById(ContentResolver cr, int keyId) {
+            return getFloatByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float getFloatByIdForUser(ContentResolver cr, int keyId,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getFloat(SCHEMA[keyId].defaultEntry.getFloat(0));
+        }
+
+        /**
+         * Looks up a key declared with an ID where it lives now, like the getters taking a
+         * name do.
+         */
+        private static CacheEntry getEntryByIdForUser(ContentResolver resolver, int keyId,
+                int userHandle) {
+            final MovedKey moved = keyId >= 0 && keyId < MOVED_DECLARED_KEYS.length
+                    ? MOVED_DECLARED_KEYS[keyId] : null;
+            if (moved != null) {
+                return moved.getEntryForUser(resolver, userHandle);
             }
+            return sNameValueCache.getEntryForUser(resolver, keyId, userHandle);
         }
-    }
-
-    /**
-     * System settings, containing miscellaneous system preferences.  This
-     * table holds simple name/value pairs.  There are convenience
-     * functions for accessing individual settings entries.
-     */
-    public static final class System extends Settings.NameValueTable
-            implements AsylumSettingsKeys.System {
-        public static final String SYS_PROP_ASYLUM_SETTING_VERSION
-                = "sys.asylumsetting_system_version";
 
         /**
-         * The content:// style URL for this table
+         * @hide - Adds the default value of every key of the schema that has one, for the
+         * provider to load into new databases.
          */
-        public static final Uri CONTENT_URI =
-            Uri.parse("content://" + AUTHORITY + "/system");
+        public static void getDefaultValues(Map<String, String> outValues) {
+            KeySpec.getDefaultValues(SCHEMA, outValues);
+        }
 
-        private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_ASYLUM_SETTING_VERSION,
-                CONTENT_URI,
-                CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+        /**
+         * @hide - Same as {@link #getString(ContentResolver, String)} for a key declared with
+         * an ID in {@link AsylumSettingsKeys}.  Hits of the client cache look the key up by
+         * index, without hashing its name.
+         */
+        public static String getStringById(ContentResolver resolver, int keyId) {
+            return getStringByIdForUser(resolver, keyId, UserHandle.myUserId());
+        }
 
-        private static final HashSet<String> MOVED_TO_SECURE;
-        static {
-            MOVED_TO_SECURE = new HashSet<String>(30);
+        /** @hide */
+        public static String getStringByIdForUser(ContentResolver resolver, int keyId,
+                int userHandle) {
+            return getEntryByIdForUser(resolver, keyId, userHandle).value;
         }
 
-        private static final HashSet<String> MOVED_TO_GLOBAL;
-        private static final HashSet<String> MOVED_TO_SECURE_THEN_GLOBAL;
-        static {
-            MOVED_TO_GLOBAL = new HashSet<String>();
-            MOVED_TO_SECURE_THEN_GLOBAL = new HashSet<String>();
+        /**
+         * @hide - Same as {@link #getInt(ContentResolver, String, int)} for a key declared with
+         * an ID.
+         */
+        public static int getIntById(ContentResolver cr, int keyId, int def) {
+            return getIntByIdForUser(cr, keyId, def, UserHandle.myUserId());
         }
 
         /** @hide */
-        public static void getMovedToGlobalSettings(Set<String> outKeySet) {
-            outKeySet.addAll(MOVED_TO_GLOBAL);
-            outKeySet.addAll(MOVED_TO_SECURE_THEN_GLOBAL);
+        public static int getIntByIdForUser(ContentResolver cr, int keyId, int def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getInt(def);
+        }
+
+        /**
+         * @hide - Same as {@link #getLong(ContentResolver, String, long)} for a key declared
+         * with an ID.
+         */
+        public static long getLongById(ContentResolver cr, int keyId, long def) {
+            return getLongByIdForUser(cr, keyId, def, UserHandle.myUserId());
         }
 
         /** @hide */
-        public static void getMovedToSecureSettings(Set<String> outKeySet) {
-            outKeySet.addAll(MOVED_TO_SECURE);
+        public static long getLongByIdForUser(ContentResolver cr, int keyId, long def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getLong(def);
+        }
+
+        /**
+         * @hide - Same as {@link #getFloat(ContentResolver, String, float)} for a key declared
+         * with an ID.
+         */
+        public static float getFloatById(ContentResolver cr, int keyId, float def) {
+            return getFloatByIdForUser(cr, keyId, def, UserHandle.myUserId());
         }
 
         /** @hide */
-        public static void getNonLegacyMovedKeys(HashSet<String> outKeySet) {
-            outKeySet.addAll(MOVED_TO_GLOBAL);
+        public static float getFloatByIdForUser(ContentResolver cr, int keyId, float def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getFloat(def);
         }
 
         /**
-         * Look up a name in the database.
+         * Starts a batch of changes written in one transaction by {@link Editor#commit()}.
          * @param resolver to access the database with
-         * @param name to look up in the table
-         * @return the corresponding value, or null if not present
          */
-        public static String getString(ContentResolver resolver, String name) {
-            return getStringForUser(resolver, name, UserHandle.myUserId());
+        public static Editor edit(ContentResolver resolver) {
+            return editForUser(resolver, UserHandle.myUserId());
         }
 
         /** @hide */
-        public static String getStringForUser(ContentResolver resolver, String name,
-                int userHandle) {
-            if (MOVED_TO_SECURE.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Secure, returning read-only value.");
-                return Secure.getStringForUser(resolver, name, userHandle);
-            }
-            if (MOVED_TO_GLOBAL.contains(name) || MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Global, returning read-only value.");
-                return Global.getStringForUser(resolver, name, userHandle);
-            }
-            return sNameValueCache.getStringForUser(resolver, name, userHandle);
+        public static Editor editForUser(ContentResolver resolver, int userHandle) {
+            return new Editor(sNameValueCache, resolver, userHandle, MOVED_KEYS.keySet());
+        }
+
+        /**
+         * Returns whether a setting moved to another table, where an {@link Editor} of this
+         * table can't write it.
+         */
+        static boolean isMoved(String name) {
+            return MOVED_KEYS.containsKey(name);
         }
 
         /**
@@ -499,15 +3094,9 @@ public final class AsylumSettings {
         /** @hide */
         public static boolean putStringForUser(ContentResolver resolver, String name, String value,
                 int userHandle) {
-            if (MOVED_TO_SECURE.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Secure, value is unchanged.");
-                return false;
-            }
-            if (MOVED_TO_GLOBAL.contains(name) || MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Global, value is unchanged.");
-                return false;
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null) {
+                return moved.putStringForUser(resolver, value, userHandle);
             }
             return sNameValueCache.putStringForUser(resolver, name, value, userHandle);
         }
@@ -519,17 +3108,48 @@ public final class AsylumSettings {
          * @return the corresponding content URI, or null if not present
          */
         public static Uri getUriFor(String name) {
-            if (MOVED_TO_SECURE.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                    + " to android.provider.Settings.Secure, returning Secure URI.");
-                return Secure.getUriFor(Secure.CONTENT_URI, name);
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null) {
+                return moved.getUri();
             }
-            if (MOVED_TO_GLOBAL.contains(name) || MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Global, returning read-only global URI.");
-                return Global.getUriFor(Global.CONTENT_URI, name);
+            return sUriCache.getUri(name);
+        }
+
+        /**
+         * Returns the name of the setting a URI from {@link #getUriFor(String)} refers to,
+         * for use in {@link android.database.ContentObserver#onChange(boolean, Uri)}.
+         * @param uri the URI of a single setting
+         * @return the name of the setting, or null if the URI isn't one of this table's
+         */
+        public static String getNameFor(Uri uri) {
+            final String name = sUriCache.getName(uri);
+            if (name != null) {
+                return name;
             }
-            return getUriFor(CONTENT_URI, name);
+            // Keys that moved out of this table are observed through their new table
+            return MovedKey.getNameFor(MOVED_KEYS, uri);
+        }
+
+        /**
+         * Has the changes of this table pushed to a listener along with their new values.
+         * @param resolver to access the database with
+         * @param listener to receive the changes
+         * @return false if the listener could not be registered
+         */
+        public static boolean registerListener(ContentResolver resolver,
+                SettingsListener listener) {
+            return registerListenerForUser(resolver, listener, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean registerListenerForUser(ContentResolver resolver,
+                SettingsListener listener, int userHandle) {
+            return sNameValueCache.registerListener(resolver, listener, userHandle);
+        }
+
+        public static void unregisterListener(ContentResolver resolver,
+                SettingsListener listener) {
+            sNameValueCache.unregisterListener(resolver, listener);
         }
 
         /**
@@ -552,12 +3172,7 @@ public final class AsylumSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getInt(def);
         }
 
         /**
@@ -586,12 +3201,7 @@ public final class AsylumSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userHandle)
                 throws AsylumSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, userHandle).getInt(name);
         }
 
         /**
@@ -638,14 +3248,7 @@ public final class AsylumSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userHandle) {
-            String valString = getStringForUser(cr, name, userHandle);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getEntryForUser(cr, name, userHandle).getLong(def);
         }
 
         /**
@@ -673,12 +3276,7 @@ public final class AsylumSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userHandle)
                 throws AsylumSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userHandle);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, userHandle).getLong(name);
         }
 
         /**
@@ -725,12 +3323,7 @@ public final class AsylumSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getFloat(def);
         }
 
         /**
@@ -759,15 +3352,7 @@ public final class AsylumSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userHandle)
                 throws AsylumSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            if (v == null) {
-                throw new AsylumSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, userHandle).getFloat(name);
         }
 
         /**
@@ -843,12 +3428,35 @@ public final class AsylumSettings {
         public static final Uri CONTENT_URI =
             Uri.parse("content://" + AUTHORITY + "/secure");
 
+        private static final UriCache sUriCache = new UriCache(CONTENT_URI);
+
+        /**
+         * Type and default value of every key declared with an ID, indexed by ID.
+         */
+        private static final KeySpec[] SCHEMA = KeySpec.checkSchema(new KeySpec[] {
+            new KeySpec(ID_STATUS_BAR_BATTERY_STYLE, STATUS_BAR_BATTERY_STYLE,
+                    KeySpec.TYPE_INT, "0"),
+            new KeySpec(ID_STATUS_BAR_BATTERY_PERCENT, STATUS_BAR_BATTERY_PERCENT,
+                    KeySpec.TYPE_INT, "0"),
+        });
+
+        /**
+         * Prefixes of the keys kept in the {@link BootSettingsSnapshot}.
+         * @hide
+         */
+        public static final String[] BOOT_SNAPSHOT_PREFIXES = {};
+
         // Populated lazily, guarded by class object:
         private static final NameValueCache sNameValueCache = new NameValueCache(
                 SYS_PROP_ASYLUM_SETTING_VERSION,
                 CONTENT_URI,
+                true,
+                SCHEMA,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_GET_MULTI_SECURE,
+                CALL_METHOD_LIST_SECURE,
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_PUT_MULTI_SECURE);
 
         private static ILockSettings sLockSettings = null;
 
@@ -861,6 +3469,21 @@ public final class AsylumSettings {
             MOVED_TO_GLOBAL = new HashSet<String>();
         }
 
+        // Where every key that moved out of this table lives now
+        private static final Map<String, MovedKey> MOVED_KEYS;
+        static {
+            final HashMap<String, MovedKey> movedKeys = new HashMap<String, MovedKey>();
+            MovedKey.addAll(movedKeys, MOVED_TO_LOCK_SETTINGS, MovedKey.TO_SECURE,
+                    MovedKey.TO_LOCK_SETTINGS, false);
+            MovedKey.addAll(movedKeys, MOVED_TO_GLOBAL, MovedKey.TO_SECURE, MovedKey.TO_GLOBAL,
+                    true);
+            MOVED_KEYS = Collections.unmodifiableMap(movedKeys);
+        }
+
+        // The entries of MOVED_KEYS for the keys declared with an ID, indexed by ID
+        private static final MovedKey[] MOVED_DECLARED_KEYS = MovedKey.forSchema(MOVED_KEYS,
+                SCHEMA);
+
         /** @hide */
         public static void getMovedToGlobalSettings(Set<String> outKeySet) {
             outKeySet.addAll(MOVED_TO_GLOBAL);
@@ -879,13 +3502,17 @@ public final class AsylumSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userHandle) {
-            if (MOVED_TO_GLOBAL.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.Secure"
-                        + " to android.provider.Settings.Global.");
-                return Global.getStringForUser(resolver, name, userHandle);
+            return getEntryForUser(resolver, name, userHandle).value;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver, String name,
+                int userHandle) {
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null && moved.target != MovedKey.TO_LOCK_SETTINGS) {
+                return moved.getEntryForUser(resolver, userHandle);
             }
 
-            if (MOVED_TO_LOCK_SETTINGS.contains(name)) {
+            if (moved != null) {
                 synchronized (Secure.class) {
                     if (sLockSettings == null) {
                         sLockSettings = ILockSettings.Stub.asInterface(
@@ -898,25 +3525,295 @@ public final class AsylumSettings {
                     // determining the target API level.
                     Application application = ActivityThread.currentApplication();
 
-                    boolean isPreMnc = application != null
-                            && application.getApplicationInfo() != null
-                            && application.getApplicationInfo().targetSdkVersion
-                            <= VERSION_CODES.LOLLIPOP_MR1;
-                    if (isPreMnc) {
-                        try {
-                            return sLockSettings.getString(name, "0", userHandle);
-                        } catch (RemoteException re) {
-                            // Fall through
-                        }
-                    } else {
-                        throw new SecurityException("Settings.Secure." + name
-                                + " is deprecated and no longer accessible."
-                                + " See API documentation for potential replacements.");
-                    }
-                }
-            }
+                    boolean isPreMnc = application != null
+                            && application.getApplicationInfo() != null
+                            && application.getApplicationInfo().targetSdkVersion
+                            <= VERSION_CODES.LOLLIPOP_MR1;
+                    if (isPreMnc) {
+                        try {
+                            return new CacheEntry(
+                                    sLockSettings.getString(name, "0", userHandle), -1);
+                        } catch (RemoteException re) {
+                            // Fall through
+                        }
+                    } else {
+                        throw new SecurityException("Settings.Secure." + name
+                                + " is deprecated and no longer accessible."
+                                + " See API documentation for potential replacements.");
+                    }
+                }
+            }
+
+            return sNameValueCache.getEntryForUser(resolver, name, userHandle);
+        }
+
+        /**
+         * Look up several names at a single state of the database, so that a write changing
+         * several of them at once is seen entirely or not at all.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the values of {@code names}
+         * @throws IllegalArgumentException if one of the names moved to another table
+         */
+        public static Snapshot getSnapshot(ContentResolver resolver, String... names) {
+            return getSnapshotForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Snapshot getSnapshotForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    throw new IllegalArgumentException("Setting " + name + " has moved to"
+                            + " another table and can't be part of a snapshot");
+                }
+            }
+            return sNameValueCache.getSnapshot(resolver, names, userHandle);
+        }
+
+        /**
+         * Same as {@link #getSnapshot(ContentResolver, String...)} for keys declared with an
+         * ID.  Unset keys read as their declared defaults.
+         * @param resolver to access the database with
+         * @param keyIds the IDs of the keys to look up
+         */
+        public static Snapshot getSnapshot(ContentResolver resolver, int... keyIds) {
+            return getSnapshotForUser(resolver, keyIds, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Snapshot getSnapshotForUser(ContentResolver resolver, int[] keyIds,
+                int userHandle) {
+            return sNameValueCache.getSnapshot(resolver, keyIds, userHandle);
+        }
+
+        /**
+         * Delivers the values of several keys now and whenever they change, coalescing bursts
+         * of changes.  Follows the current user where this process may, its own user
+         * otherwise.
+         * @param resolver to access the database with
+         * @param names to observe
+         * @param executor to run {@code observer} on
+         * @return the subscription, to cancel when the values aren't needed anymore
+         * @throws IllegalArgumentException if one of the names moved to another table
+         */
+        public static Subscription observe(ContentResolver resolver, String[] names,
+                Executor executor, SettingsObserver observer) {
+            return observeForUser(resolver, names, UserHandle.USER_CURRENT, executor, observer);
+        }
+
+        /** @hide */
+        public static Subscription observeForUser(ContentResolver resolver, String[] names,
+                int userHandle, Executor executor, SettingsObserver observer) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    throw new IllegalArgumentException("Setting " + name + " has moved to"
+                            + " another table and can't be observed here");
+                }
+            }
+            return sNameValueCache.observe(resolver, names, userHandle, executor, observer);
+        }
+
+        /**
+         * Same as {@link #observe(ContentResolver, String[], Executor, SettingsObserver)} for
+         * keys declared with an ID, whose values can then be read by ID with their defaults.
+         */
+        public static Subscription observe(ContentResolver resolver, int[] keyIds,
+                Executor executor, SettingsObserver observer) {
+            return observeForUser(resolver, keyIds, UserHandle.USER_CURRENT, executor,
+                    observer);
+        }
+
+        /** @hide */
+        public static Subscription observeForUser(ContentResolver resolver, int[] keyIds,
+                int userHandle, Executor executor, SettingsObserver observer) {
+            return sNameValueCache.observe(resolver, keyIds, userHandle, executor, observer);
+        }
+
+        /**
+         * Look up several names in the database with a single round trip.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the order of {@code names}, with null for
+         * names that are not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    // Moved settings live in other tables, keep them on the single key path
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userHandle);
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userHandle);
+        }
+
+        /**
+         * Look up every name starting with a prefix with a single round trip, e.g. all
+         * bindings of a key family.
+         * @param resolver to access the database with
+         * @param prefix the names have to start with
+         * @return an unmodifiable map of the names found to their values
+         */
+        public static Map<String, String> getStringsForPrefix(ContentResolver resolver,
+                String prefix) {
+            return getStringsForPrefixForUser(resolver, prefix, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsForPrefixForUser(ContentResolver resolver,
+                String prefix, int userHandle) {
+            return sNameValueCache.getStringsForPrefix(resolver, prefix, userHandle);
+        }
+
+        /**
+         * @hide - Reads an integer key declared with an ID, falling back to its default in
+         * the schema when the key is unset or malformed.
+         */
+        public static int getIntById(ContentResolver cr, int keyId) {
+            return getIntByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int getIntByIdForUser(ContentResolver cr, int keyId, int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getInt(SCHEMA[keyId].defaultEntry.getInt(0));
+        }
+
+        /**
+         * @hide - Same as {@link #getIntById(ContentResolver, int)} for long keys.
+         */
+        public static long getLongById(ContentResolver cr, int keyId) {
+            return getLongByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long getLongByIdForUser(ContentResolver cr, int keyId, int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getLong(SCHEMA[keyId].defaultEntry.getLong(0));
+        }
+
+        /**
+         * @hide - Same as {@link #getIntById(ContentResolver, int)} for float keys.
+         */
+        public static float getFloatById(ContentResolver cr, int keyId) {
+            return getFloatByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float getFloatByIdForUser(ContentResolver cr, int keyId,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getFloat(SCHEMA[keyId].defaultEntry.getFloat(0));
+        }
+
+        /**
+         * Looks up a key declared with an ID where it lives now, like the getters taking a
+         * name do.
+         */
+        private static CacheEntry getEntryByIdForUser(ContentResolver resolver, int keyId,
+                int userHandle) {
+            final MovedKey moved = keyId >= 0 && keyId < MOVED_DECLARED_KEYS.length
+                    ? MOVED_DECLARED_KEYS[keyId] : null;
+            if (moved != null) {
+                return moved.getEntryForUser(resolver, userHandle);
+            }
+            return sNameValueCache.getEntryForUser(resolver, keyId, userHandle);
+        }
+
+        /**
+         * @hide - Adds the default value of every key of the schema that has one, for the
+         * provider to load into new databases.
+         */
+        public static void getDefaultValues(Map<String, String> outValues) {
+            KeySpec.getDefaultValues(SCHEMA, outValues);
+        }
+
+        /**
+         * @hide - Same as {@link #getString(ContentResolver, String)} for a key declared with
+         * an ID in {@link AsylumSettingsKeys}.  Hits of the client cache look the key up by
+         * index, without hashing its name.
+         */
+        public static String getStringById(ContentResolver resolver, int keyId) {
+            return getStringByIdForUser(resolver, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String getStringByIdForUser(ContentResolver resolver, int keyId,
+                int userHandle) {
+            return getEntryByIdForUser(resolver, keyId, userHandle).value;
+        }
+
+        /**
+         * @hide - Same as {@link #getInt(ContentResolver, String, int)} for a key declared with
+         * an ID.
+         */
+        public static int getIntById(ContentResolver cr, int keyId, int def) {
+            return getIntByIdForUser(cr, keyId, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int getIntByIdForUser(ContentResolver cr, int keyId, int def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getInt(def);
+        }
+
+        /**
+         * @hide - Same as {@link #getLong(ContentResolver, String, long)} for a key declared
+         * with an ID.
+         */
+        public static long getLongById(ContentResolver cr, int keyId, long def) {
+            return getLongByIdForUser(cr, keyId, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long getLongByIdForUser(ContentResolver cr, int keyId, long def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getLong(def);
+        }
+
+        /**
+         * @hide - Same as {@link #getFloat(ContentResolver, String, float)} for a key declared
+         * with an ID.
+         */
+        public static float getFloatById(ContentResolver cr, int keyId, float def) {
+            return getFloatByIdForUser(cr, keyId, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float getFloatByIdForUser(ContentResolver cr, int keyId, float def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getFloat(def);
+        }
+
+        /**
+         * Starts a batch of changes written in one transaction by {@link Editor#commit()}.
+         * @param resolver to access the database with
+         */
+        public static Editor edit(ContentResolver resolver) {
+            return editForUser(resolver, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Editor editForUser(ContentResolver resolver, int userHandle) {
+            return new Editor(sNameValueCache, resolver, userHandle, MOVED_KEYS.keySet());
+        }
 
-            return sNameValueCache.getStringForUser(resolver, name, userHandle);
+        /**
+         * Returns whether a setting moved to another table, where an {@link Editor} of this
+         * table can't write it.
+         */
+        static boolean isMoved(String name) {
+            return MOVED_KEYS.containsKey(name);
         }
 
         /**
@@ -933,10 +3830,10 @@ public final class AsylumSettings {
         /** @hide */
         public static boolean putStringForUser(ContentResolver resolver, String name, String value,
                 int userHandle) {
-            if (MOVED_TO_GLOBAL.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Global");
-                return Global.putStringForUser(resolver, name, value, userHandle);
+            final MovedKey moved = MOVED_KEYS.get(name);
+            // Keys moved to lock settings are still written here
+            if (moved != null && moved.target != MovedKey.TO_LOCK_SETTINGS) {
+                return moved.putStringForUser(resolver, value, userHandle);
             }
             return sNameValueCache.putStringForUser(resolver, name, value, userHandle);
         }
@@ -948,12 +3845,48 @@ public final class AsylumSettings {
          * @return the corresponding content URI, or null if not present
          */
         public static Uri getUriFor(String name) {
-            if (MOVED_TO_GLOBAL.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.Secure"
-                        + " to android.provider.Settings.Global, returning global URI.");
-                return Global.getUriFor(Global.CONTENT_URI, name);
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null && moved.target != MovedKey.TO_LOCK_SETTINGS) {
+                return moved.getUri();
+            }
+            return sUriCache.getUri(name);
+        }
+
+        /**
+         * Returns the name of the setting a URI from {@link #getUriFor(String)} refers to,
+         * for use in {@link android.database.ContentObserver#onChange(boolean, Uri)}.
+         * @param uri the URI of a single setting
+         * @return the name of the setting, or null if the URI isn't one of this table's
+         */
+        public static String getNameFor(Uri uri) {
+            final String name = sUriCache.getName(uri);
+            if (name != null) {
+                return name;
             }
-            return getUriFor(CONTENT_URI, name);
+            // Keys that moved out of this table are observed through their new table
+            return MovedKey.getNameFor(MOVED_KEYS, uri);
+        }
+
+        /**
+         * Has the changes of this table pushed to a listener along with their new values.
+         * @param resolver to access the database with
+         * @param listener to receive the changes
+         * @return false if the listener could not be registered
+         */
+        public static boolean registerListener(ContentResolver resolver,
+                SettingsListener listener) {
+            return registerListenerForUser(resolver, listener, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean registerListenerForUser(ContentResolver resolver,
+                SettingsListener listener, int userHandle) {
+            return sNameValueCache.registerListener(resolver, listener, userHandle);
+        }
+
+        public static void unregisterListener(ContentResolver resolver,
+                SettingsListener listener) {
+            sNameValueCache.unregisterListener(resolver, listener);
         }
 
         /**
@@ -976,12 +3909,7 @@ public final class AsylumSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getInt(def);
         }
 
         /**
@@ -1010,12 +3938,7 @@ public final class AsylumSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userHandle)
                 throws AsylumSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, userHandle).getInt(name);
         }
 
         /**
@@ -1062,14 +3985,7 @@ public final class AsylumSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userHandle) {
-            String valString = getStringForUser(cr, name, userHandle);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getEntryForUser(cr, name, userHandle).getLong(def);
         }
 
         /**
@@ -1097,12 +4013,7 @@ public final class AsylumSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userHandle)
                 throws AsylumSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userHandle);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, userHandle).getLong(name);
         }
 
         /**
@@ -1149,12 +4060,7 @@ public final class AsylumSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getFloat(def);
         }
 
         /**
@@ -1183,15 +4089,7 @@ public final class AsylumSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userHandle)
                 throws AsylumSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            if (v == null) {
-                throw new AsylumSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, userHandle).getFloat(name);
         }
 
         /**
@@ -1248,12 +4146,31 @@ public final class AsylumSettings {
          */
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/global");
 
+        private static final UriCache sUriCache = new UriCache(CONTENT_URI);
+
+        /**
+         * Type and default value of every key declared with an ID, indexed by ID.
+         */
+        private static final KeySpec[] SCHEMA = KeySpec.checkSchema(new KeySpec[] {
+        });
+
+        /**
+         * Prefixes of the keys kept in the {@link BootSettingsSnapshot}.
+         * @hide
+         */
+        public static final String[] BOOT_SNAPSHOT_PREFIXES = {};
+
         // Populated lazily, guarded by class object:
         private static NameValueCache sNameValueCache = new NameValueCache(
                     SYS_PROP_ASYLUM_SETTING_VERSION,
                     CONTENT_URI,
+                    false,
+                    SCHEMA,
                     CALL_METHOD_GET_GLOBAL,
-                    CALL_METHOD_PUT_GLOBAL);
+                    CALL_METHOD_GET_MULTI_GLOBAL,
+                    CALL_METHOD_LIST_GLOBAL,
+                    CALL_METHOD_PUT_GLOBAL,
+                    CALL_METHOD_PUT_MULTI_GLOBAL);
 
         // Certain settings have been moved from global to the per-user secure namespace
         private static final HashSet<String> MOVED_TO_SECURE;
@@ -1261,6 +4178,19 @@ public final class AsylumSettings {
             MOVED_TO_SECURE = new HashSet<String>(1);
         }
 
+        // Where every key that moved out of this table lives now
+        private static final Map<String, MovedKey> MOVED_KEYS;
+        static {
+            final HashMap<String, MovedKey> movedKeys = new HashMap<String, MovedKey>();
+            MovedKey.addAll(movedKeys, MOVED_TO_SECURE, MovedKey.TO_GLOBAL, MovedKey.TO_SECURE,
+                    true);
+            MOVED_KEYS = Collections.unmodifiableMap(movedKeys);
+        }
+
+        // The entries of MOVED_KEYS for the keys declared with an ID, indexed by ID
+        private static final MovedKey[] MOVED_DECLARED_KEYS = MovedKey.forSchema(MOVED_KEYS,
+                SCHEMA);
+
         /** @hide */
         public static void getMovedToSecureSettings(Set<String> outKeySet) {
             outKeySet.addAll(MOVED_TO_SECURE);
@@ -1279,12 +4209,285 @@ public final class AsylumSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userHandle) {
-            if (MOVED_TO_SECURE.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.Global"
-                        + " to android.provider.Settings.Secure, returning read-only value.");
-                return Secure.getStringForUser(resolver, name, userHandle);
+            return getEntryForUser(resolver, name, userHandle).value;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver, String name,
+                int userHandle) {
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null) {
+                return moved.getEntryForUser(resolver, userHandle);
+            }
+            return sNameValueCache.getEntryForUser(resolver, name, userHandle);
+        }
+
+        /**
+         * Look up several names at a single state of the database, so that a write changing
+         * several of them at once is seen entirely or not at all.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the values of {@code names}
+         * @throws IllegalArgumentException if one of the names moved to another table
+         */
+        public static Snapshot getSnapshot(ContentResolver resolver, String... names) {
+            return getSnapshotForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Snapshot getSnapshotForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    throw new IllegalArgumentException("Setting " + name + " has moved to"
+                            + " another table and can't be part of a snapshot");
+                }
+            }
+            return sNameValueCache.getSnapshot(resolver, names, userHandle);
+        }
+
+        /**
+         * Same as {@link #getSnapshot(ContentResolver, String...)} for keys declared with an
+         * ID.  Unset keys read as their declared defaults.
+         * @param resolver to access the database with
+         * @param keyIds the IDs of the keys to look up
+         */
+        public static Snapshot getSnapshot(ContentResolver resolver, int... keyIds) {
+            return getSnapshotForUser(resolver, keyIds, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Snapshot getSnapshotForUser(ContentResolver resolver, int[] keyIds,
+                int userHandle) {
+            return sNameValueCache.getSnapshot(resolver, keyIds, userHandle);
+        }
+
+        /**
+         * Delivers the values of several keys now and whenever they change, coalescing bursts
+         * of changes.  Follows the current user where this process may, its own user
+         * otherwise.
+         * @param resolver to access the database with
+         * @param names to observe
+         * @param executor to run {@code observer} on
+         * @return the subscription, to cancel when the values aren't needed anymore
+         * @throws IllegalArgumentException if one of the names moved to another table
+         */
+        public static Subscription observe(ContentResolver resolver, String[] names,
+                Executor executor, SettingsObserver observer) {
+            return observeForUser(resolver, names, UserHandle.USER_CURRENT, executor, observer);
+        }
+
+        /** @hide */
+        public static Subscription observeForUser(ContentResolver resolver, String[] names,
+                int userHandle, Executor executor, SettingsObserver observer) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    throw new IllegalArgumentException("Setting " + name + " has moved to"
+                            + " another table and can't be observed here");
+                }
+            }
+            return sNameValueCache.observe(resolver, names, userHandle, executor, observer);
+        }
+
+        /**
+         * Same as {@link #observe(ContentResolver, String[], Executor, SettingsObserver)} for
+         * keys declared with an ID, whose values can then be read by ID with their defaults.
+         */
+        public static Subscription observe(ContentResolver resolver, int[] keyIds,
+                Executor executor, SettingsObserver observer) {
+            return observeForUser(resolver, keyIds, UserHandle.USER_CURRENT, executor,
+                    observer);
+        }
+
+        /** @hide */
+        public static Subscription observeForUser(ContentResolver resolver, int[] keyIds,
+                int userHandle, Executor executor, SettingsObserver observer) {
+            return sNameValueCache.observe(resolver, keyIds, userHandle, executor, observer);
+        }
+
+        /**
+         * Look up several names in the database with a single round trip.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the order of {@code names}, with null for
+         * names that are not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_KEYS.containsKey(name)) {
+                    // Moved settings live in other tables, keep them on the single key path
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userHandle);
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userHandle);
+        }
+
+        /**
+         * Look up every name starting with a prefix with a single round trip, e.g. all
+         * bindings of a key family.
+         * @param resolver to access the database with
+         * @param prefix the names have to start with
+         * @return an unmodifiable map of the names found to their values
+         */
+        public static Map<String, String> getStringsForPrefix(ContentResolver resolver,
+                String prefix) {
+            return getStringsForPrefixForUser(resolver, prefix, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsForPrefixForUser(ContentResolver resolver,
+                String prefix, int userHandle) {
+            return sNameValueCache.getStringsForPrefix(resolver, prefix, userHandle);
+        }
+
+        /**
+         * @hide - Reads an integer key declared with an ID, falling back to its default in
+         * the schema when the key is unset or malformed.
+         */
+        public static int getIntById(ContentResolver cr, int keyId) {
+            return getIntByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int getIntByIdForUser(ContentResolver cr, int keyId, int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getInt(SCHEMA[keyId].defaultEntry.getInt(0));
+        }
+
+        /**
+         * @hide - Same as {@link #getIntById(ContentResolver, int)} for long keys.
+         */
+        public static long getLongById(ContentResolver cr, int keyId) {
+            return getLongByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long getLongByIdForUser(ContentResolver cr, int keyId, int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getLong(SCHEMA[keyId].defaultEntry.getLong(0));
+        }
+
+        /**
+         * @hide - Same as {@link #getIntById(ContentResolver, int)} for float keys.
+         */
+        public static float getFloatById(ContentResolver cr, int keyId) {
+            return getFloatByIdForUser(cr, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float getFloatByIdForUser(ContentResolver cr, int keyId,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle)
+                    .getFloat(SCHEMA[keyId].defaultEntry.getFloat(0));
+        }
+
+        /**
+         * Looks up a key declared with an ID where it lives now, like the getters taking a
+         * name do.
+         */
+        private static CacheEntry getEntryByIdForUser(ContentResolver resolver, int keyId,
+                int userHandle) {
+            final MovedKey moved = keyId >= 0 && keyId < MOVED_DECLARED_KEYS.length
+                    ? MOVED_DECLARED_KEYS[keyId] : null;
+            if (moved != null) {
+                return moved.getEntryForUser(resolver, userHandle);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userHandle);
+            return sNameValueCache.getEntryForUser(resolver, keyId, userHandle);
+        }
+
+        /**
+         * @hide - Adds the default value of every key of the schema that has one, for the
+         * provider to load into new databases.
+         */
+        public static void getDefaultValues(Map<String, String> outValues) {
+            KeySpec.getDefaultValues(SCHEMA, outValues);
+        }
+
+        /**
+         * @hide - Same as {@link #getString(ContentResolver, String)} for a key declared with
+         * an ID in {@link AsylumSettingsKeys}.  Hits of the client cache look the key up by
+         * index, without hashing its name.
+         */
+        public static String getStringById(ContentResolver resolver, int keyId) {
+            return getStringByIdForUser(resolver, keyId, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String getStringByIdForUser(ContentResolver resolver, int keyId,
+                int userHandle) {
+            return getEntryByIdForUser(resolver, keyId, userHandle).value;
+        }
+
+        /**
+         * @hide - Same as {@link #getInt(ContentResolver, String, int)} for a key declared with
+         * an ID.
+         */
+        public static int getIntById(ContentResolver cr, int keyId, int def) {
+            return getIntByIdForUser(cr, keyId, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int getIntByIdForUser(ContentResolver cr, int keyId, int def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getInt(def);
+        }
+
+        /**
+         * @hide - Same as {@link #getLong(ContentResolver, String, long)} for a key declared
+         * with an ID.
+         */
+        public static long getLongById(ContentResolver cr, int keyId, long def) {
+            return getLongByIdForUser(cr, keyId, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long getLongByIdForUser(ContentResolver cr, int keyId, long def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getLong(def);
+        }
+
+        /**
+         * @hide - Same as {@link #getFloat(ContentResolver, String, float)} for a key declared
+         * with an ID.
+         */
+        public static float getFloatById(ContentResolver cr, int keyId, float def) {
+            return getFloatByIdForUser(cr, keyId, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float getFloatByIdForUser(ContentResolver cr, int keyId, float def,
+                int userHandle) {
+            return getEntryByIdForUser(cr, keyId, userHandle).getFloat(def);
+        }
+
+        /**
+         * Starts a batch of changes written in one transaction by {@link Editor#commit()}.
+         * @param resolver to access the database with
+         */
+        public static Editor edit(ContentResolver resolver) {
+            return editForUser(resolver, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Editor editForUser(ContentResolver resolver, int userHandle) {
+            return new Editor(sNameValueCache, resolver, userHandle, MOVED_KEYS.keySet());
+        }
+
+        /**
+         * Returns whether a setting moved to another table, where an {@link Editor} of this
+         * table can't write it.
+         */
+        static boolean isMoved(String name) {
+            return MOVED_KEYS.containsKey(name);
         }
 
         /**
@@ -1307,10 +4510,9 @@ public final class AsylumSettings {
                         + " for " + userHandle);
             }
             // Global and Secure have the same access policy so we can forward writes
-            if (MOVED_TO_SECURE.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.Global"
-                        + " to android.provider.Settings.Secure, value is unchanged.");
-                return Secure.putStringForUser(resolver, name, value, userHandle);
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null) {
+                return moved.putStringForUser(resolver, value, userHandle);
             }
             return sNameValueCache.putStringForUser(resolver, name, value, userHandle);
         }
@@ -1322,7 +4524,48 @@ public final class AsylumSettings {
          * @return the corresponding content URI, or null if not present
          */
         public static Uri getUriFor(String name) {
-            return getUriFor(CONTENT_URI, name);
+            final MovedKey moved = MOVED_KEYS.get(name);
+            if (moved != null) {
+                return moved.getUri();
+            }
+            return sUriCache.getUri(name);
+        }
+
+        /**
+         * Returns the name of the setting a URI from {@link #getUriFor(String)} refers to,
+         * for use in {@link android.database.ContentObserver#onChange(boolean, Uri)}.
+         * @param uri the URI of a single setting
+         * @return the name of the setting, or null if the URI isn't one of this table's
+         */
+        public static String getNameFor(Uri uri) {
+            final String name = sUriCache.getName(uri);
+            if (name != null) {
+                return name;
+            }
+            // Keys that moved out of this table are observed through their new table
+            return MovedKey.getNameFor(MOVED_KEYS, uri);
+        }
+
+        /**
+         * Has the changes of this table pushed to a listener along with their new values.
+         * @param resolver to access the database with
+         * @param listener to receive the changes
+         * @return false if the listener could not be registered
+         */
+        public static boolean registerListener(ContentResolver resolver,
+                SettingsListener listener) {
+            return registerListenerForUser(resolver, listener, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean registerListenerForUser(ContentResolver resolver,
+                SettingsListener listener, int userHandle) {
+            return sNameValueCache.registerListener(resolver, listener, userHandle);
+        }
+
+        public static void unregisterListener(ContentResolver resolver,
+                SettingsListener listener) {
+            sNameValueCache.unregisterListener(resolver, listener);
         }
 
         /**
@@ -1340,12 +4583,7 @@ public final class AsylumSettings {
          * or not a valid integer.
          */
         public static int getInt(ContentResolver cr, String name, int def) {
-            String v = getString(cr, name);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getInt(def);
         }
 
         /**
@@ -1368,12 +4606,7 @@ public final class AsylumSettings {
          */
         public static int getInt(ContentResolver cr, String name)
                 throws AsylumSettingNotFoundException {
-            String v = getString(cr, name);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getInt(name);
         }
 
         /**
@@ -1408,14 +4641,7 @@ public final class AsylumSettings {
          * or not a valid {@code long}.
          */
         public static long getLong(ContentResolver cr, String name, long def) {
-            String valString = getString(cr, name);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getLong(def);
         }
 
         /**
@@ -1437,12 +4663,7 @@ public final class AsylumSettings {
          */
         public static long getLong(ContentResolver cr, String name)
                 throws AsylumSettingNotFoundException {
-            String valString = getString(cr, name);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getLong(name);
         }
 
         /**
@@ -1477,12 +4698,7 @@ public final class AsylumSettings {
          * or not a valid float.
          */
         public static float getFloat(ContentResolver cr, String name, float def) {
-            String v = getString(cr, name);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getFloat(def);
         }
 
         /**
@@ -1505,15 +4721,7 @@ public final class AsylumSettings {
          */
         public static float getFloat(ContentResolver cr, String name)
                 throws AsylumSettingNotFoundException {
-            String v = getString(cr, name);
-            if (v == null) {
-                throw new AsylumSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
-                throw new AsylumSettingNotFoundException(name);
-            }
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getFloat(name);
         }
 
         /**
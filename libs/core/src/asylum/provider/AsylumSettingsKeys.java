@@ -16,8 +16,19 @@
 
 package asylum.provider;
 
+/**
+ * The keys of the AsylumSettings tables.
+ *
+ * Keys read often also get an integer ID, used by the ID based getters of the tables to look
+ * the key up in an array instead of hashing its name.  IDs are dense per table and never
+ * reused: add new keys at the end and declare their type, default value and validator at the
+ * ID's index in the {@code SCHEMA} of their table.
+ */
 public final class AsylumSettingsKeys {
 
+    private AsylumSettingsKeys() {
+    }
+
     public interface System {
     }
 
@@ -35,6 +46,9 @@ public final class AsylumSettingsKeys {
          */
         public static final String STATUS_BAR_BATTERY_STYLE = "status_bar_battery_style";
 
+        /** @hide */
+        public static final int ID_STATUS_BAR_BATTERY_STYLE = 0;
+
         /**
          * Status bar battery %
          * 0: Hide the battery percentage
@@ -43,6 +57,9 @@ public final class AsylumSettingsKeys {
          * @hide
          */
         public static final String STATUS_BAR_BATTERY_PERCENT = "status_bar_battery_percent";
+
+        /** @hide */
+        public static final int ID_STATUS_BAR_BATTERY_PERCENT = 1;
     }
 
     public interface Global {
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2019 Project Asylum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package asylum.provider;
+
+import android.content.ContentResolver;
+import android.os.Handler;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes AsylumSettings in the background, coalescing bursts of writes.
+ *
+ * Every put is queued and only the latest value of each key is kept.  The queue is written to
+ * the provider one flush interval after the first put of a burst, in one transaction per table
+ * and user, so a slider dragged at touch rate costs a few provider transactions instead of one
+ * per event.  Reads made through the writer see the values still queued.
+ *
+ * Queued values are lost if the process dies before they are written; call {@link #flush()}
+ * or {@link #commit()} when a burst ends.
+ *
+ * @hide
+ */
+public final class AsylumSettingsWriter {
+    private static final String TAG = "AsylumSettingsWriter";
+    private static final boolean LOCAL_LOGV = false;
+
+    public static final int TABLE_SYSTEM = 0;
+    public static final int TABLE_SECURE = 1;
+    public static final int TABLE_GLOBAL = 2;
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 100;
+
+    // Returned by lookups when nothing is queued for a key, since null is a valid value
+    private static final String NOT_QUEUED = new String("<not queued>");
+
+    private static final class PendingKey {
+        final int table;
+        final String name;
+        final int userHandle;
+
+        PendingKey(int table, String name, int userHandle) {
+            this.table = table;
+            this.name = name;
+            this.userHandle = userHandle;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            final PendingKey other = (PendingKey) o;
+            return table == other.table && userHandle == other.userHandle
+                    && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * table + userHandle) + name.hashCode();
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.  Latest value of every key not handed to the provider yet, in the
+    // order the keys were first written.
+    private final LinkedHashMap<PendingKey, String> mPending =
+            new LinkedHashMap<PendingKey, String>();
+
+    // Guarded by mLock.  Values being written right now, still served to readers until the
+    // provider has them.
+    private final LinkedHashMap<PendingKey, String> mInFlight =
+            new LinkedHashMap<PendingKey, String>();
+
+    // Guarded by mLock
+    private long mFlushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private boolean mFlushScheduled;
+
+    // Held while draining and writing, so that an older batch can't land after a newer one
+    private final Object mWriteLock = new Object();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    public AsylumSettingsWriter(ContentResolver resolver) {
+        this(resolver, BackgroundThread.getHandler());
+    }
+
+    /**
+     * @param handler The handler background writes are made on.
+     */
+    public AsylumSettingsWriter(ContentResolver resolver, Handler handler) {
+        mResolver = resolver;
+        mHandler = handler;
+    }
+
+    /**
+     * Sets how long a write may wait for further writes to coalesce with.  Takes effect from
+     * the next burst of writes.
+     */
+    public void setFlushInterval(long flushIntervalMs) {
+        if (flushIntervalMs < 0) {
+            throw new IllegalArgumentException("Negative flush interval " + flushIntervalMs);
+        }
+        synchronized (mLock) {
+            mFlushIntervalMs = flushIntervalMs;
+        }
+    }
+
+    /**
+     * Queues a value to be written, replacing any value still queued for the same key.
+     */
+    public void putStringForUser(int table, String name, String value, int userHandle) {
+        checkTable(table);
+        final PendingKey key = new PendingKey(table, name, userHandle);
+        synchronized (mLock) {
+            mPending.put(key, value);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mFlushIntervalMs);
+            }
+        }
+    }
+
+    public void putIntForUser(int table, String name, int value, int userHandle) {
+        putStringForUser(table, name, Integer.toString(value), userHandle);
+    }
+
+    /**
+     * Reads a value, preferring the one queued by this writer if there is one.
+     */
+    public String getStringForUser(int table, String name, int userHandle) {
+        checkTable(table);
+        final String queued = getQueued(new PendingKey(table, name, userHandle));
+        if (queued != NOT_QUEUED) {
+            return queued;
+        }
+        switch (table) {
+            case TABLE_GLOBAL:
+                return AsylumSettings.Global.getStringForUser(mResolver, name, userHandle);
+            case TABLE_SECURE:
+                return AsylumSettings.Secure.getStringForUser(mResolver, name, userHandle);
+            default:
+                return AsylumSettings.System.getStringForUser(mResolver, name, userHandle);
+        }
+    }
+
+    /**
+     * Same as {@link #getStringForUser} for integer values.
+     */
+    public int getIntForUser(int table, String name, int def, int userHandle) {
+        checkTable(table);
+        final String queued = getQueued(new PendingKey(table, name, userHandle));
+        if (queued != NOT_QUEUED) {
+            try {
+                return queued != null ? Integer.parseInt(queued) : def;
+            } catch (NumberFormatException e) {
+                return def;
+            }
+        }
+        switch (table) {
+            case TABLE_GLOBAL:
+                return AsylumSettings.Global.getInt(mResolver, name, def);
+            case TABLE_SECURE:
+                return AsylumSettings.Secure.getIntForUser(mResolver, name, def, userHandle);
+            default:
+                return AsylumSettings.System.getIntForUser(mResolver, name, def, userHandle);
+        }
+    }
+
+    /**
+     * Starts writing every queued value in the background right away.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = true;
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    /**
+     * Writes every queued value on the calling thread.  Makes binder calls, so avoid calling
+     * it from the main thread.
+     * @return false if any value could not be written
+     */
+    public boolean commit() {
+        return writePending();
+    }
+
+    private String getQueued(PendingKey key) {
+        synchronized (mLock) {
+            if (mPending.containsKey(key)) {
+                return mPending.get(key);
+            }
+            if (mInFlight.containsKey(key)) {
+                return mInFlight.get(key);
+            }
+        }
+        return NOT_QUEUED;
+    }
+
+    private boolean writePending() {
+        synchronized (mWriteLock) {
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+                if (mPending.isEmpty()) {
+                    return true;
+                }
+                mInFlight.putAll(mPending);
+                mPending.clear();
+            }
+
+            if (LOCAL_LOGV) Log.v(TAG, "Writing " + mInFlight.size() + " queued values");
+            // One transaction per table and user.  Only this thread modifies mInFlight while
+            // mWriteLock is held.
+            final HashMap<PendingKey, AsylumSettings.Editor> editors =
+                    new HashMap<PendingKey, AsylumSettings.Editor>();
+            final ArrayList<PendingKey> movedKeys = new ArrayList<PendingKey>();
+            for (Map.Entry<PendingKey, String> entry : mInFlight.entrySet()) {
+                final PendingKey key = entry.getKey();
+                if (isMoved(key.table, key.name)) {
+                    movedKeys.add(key);
+                    continue;
+                }
+                final PendingKey editorKey = new PendingKey(key.table, "", key.userHandle);
+                AsylumSettings.Editor editor = editors.get(editorKey);
+                if (editor == null) {
+                    editor = edit(key.table, key.userHandle);
+                    editors.put(editorKey, editor);
+                }
+                editor.putString(key.name, entry.getValue());
+            }
+            boolean success = true;
+            for (PendingKey key : movedKeys) {
+                // Forwarded to the table the key moved to, outside of the batch
+                if (!put(key.table, key.name, mInFlight.get(key), key.userHandle)) {
+                    Log.w(TAG, "Failed to write queued value of " + key.name);
+                    success = false;
+                }
+            }
+            for (AsylumSettings.Editor editor : editors.values()) {
+                if (!editor.commit()) {
+                    Log.w(TAG, "Failed to write queued values");
+                    success = false;
+                }
+            }
+
+            synchronized (mLock) {
+                mInFlight.clear();
+            }
+            return success;
+        }
+    }
+
+    private AsylumSettings.Editor edit(int table, int userHandle) {
+        switch (table) {
+            case TABLE_GLOBAL:
+                return AsylumSettings.Global.editForUser(mResolver, userHandle);
+            case TABLE_SECURE:
+                return AsylumSettings.Secure.editForUser(mResolver, userHandle);
+            default:
+                return AsylumSettings.System.editForUser(mResolver, userHandle);
+        }
+    }
+
+    private static boolean isMoved(int table, String name) {
+        switch (table) {
+            case TABLE_GLOBAL:
+                return AsylumSettings.Global.isMoved(name);
+            case TABLE_SECURE:
+                return AsylumSettings.Secure.isMoved(name);
+            default:
+                return AsylumSettings.System.isMoved(name);
+        }
+    }
+
+    private boolean put(int table, String name, String value, int userHandle) {
+        switch (table) {
+            case TABLE_GLOBAL:
+                return AsylumSettings.Global.putStringForUser(mResolver, name, value,
+                        userHandle);
+            case TABLE_SECURE:
+                return AsylumSettings.Secure.putStringForUser(mResolver, name, value,
+                        userHandle);
+            default:
+                return AsylumSettings.System.putStringForUser(mResolver, name, value,
+                        userHandle);
+        }
+    }
+
+    private static void checkTable(int table) {
+        if (table != TABLE_SYSTEM && table != TABLE_SECURE && table != TABLE_GLOBAL) {
+            throw new IllegalArgumentException("Unknown table " + table);
+        }
+    }
+}
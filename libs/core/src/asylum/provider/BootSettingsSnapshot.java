@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2019 Project Asylum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package asylum.provider;
+
+import android.app.ActivityThread;
+import android.os.Environment;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A compact, read-only copy of the settings system_server needs while it boots, before the
+ * settings provider is published.  The provider rewrites it whenever one of these settings
+ * changes, and {@link AsylumSettings} serves reads from it until the provider can be reached.
+ *
+ * Only the settings of the owner are kept, those starting with one of the
+ * {@code BOOT_SNAPSHOT_PREFIXES} of their table.  The file lives in /data/system, so only
+ * the system uid can read it.
+ *
+ * @hide
+ */
+public final class BootSettingsSnapshot {
+    private static final String TAG = "BootSettingsSnapshot";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String FILE_NAME = "asylum_settings_boot";
+
+    private static final int MAGIC = 0x41534253;
+    private static final int VERSION = 1;
+
+    private static final Object sLock = new Object();
+
+    // Guarded by sLock.  The snapshot is read at most once per process, and dropped for good
+    // once the provider was reached.
+    private static boolean sLoaded;
+    private static BootSettingsSnapshot sBootSnapshot;
+
+    private static final class Table {
+        final String[] prefixes;
+        final ArrayMap<String, String> values;
+
+        Table(String[] prefixes, ArrayMap<String, String> values) {
+            this.prefixes = prefixes;
+            this.values = values;
+        }
+
+        boolean covers(String name) {
+            for (String prefix : prefixes) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final ArrayMap<String, Table> mTables = new ArrayMap<String, Table>();
+
+    public BootSettingsSnapshot() {
+    }
+
+    /**
+     * Adds the settings of a table.
+     * @param prefixes The key prefixes the table keeps in the snapshot.
+     * @param names Every key of the owner starting with one of {@code prefixes}.
+     * @param values The values of {@code names}, in the same order.
+     */
+    public void putTable(String tableName, String[] prefixes, String[] names, String[] values) {
+        final ArrayMap<String, String> tableValues = new ArrayMap<String, String>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            tableValues.put(names[i], values[i]);
+        }
+        mTables.put(tableName, new Table(prefixes.clone(), tableValues));
+    }
+
+    /**
+     * Returns whether the snapshot knows the value of a key for a user.  Keys it covers but
+     * doesn't hold are known to be unset.
+     * @param userId The resolved user, never {@link UserHandle#USER_CURRENT} or the like.
+     */
+    boolean covers(String tableName, String name, int userId) {
+        final Table table = mTables.get(tableName);
+        // Nobody but the owner can be the current user before the provider is up
+        return table != null && userId == UserHandle.USER_OWNER && table.covers(name);
+    }
+
+    /**
+     * Returns whether the snapshot holds every key starting with {@code prefix} for a user.
+     */
+    boolean coversPrefix(String tableName, String prefix, int userId) {
+        return covers(tableName, prefix, userId);
+    }
+
+    String getString(String tableName, String name) {
+        final Table table = mTables.get(tableName);
+        return table != null ? table.values.get(name) : null;
+    }
+
+    Map<String, String> getStringsForPrefix(String tableName, String prefix) {
+        final Table table = mTables.get(tableName);
+        if (table == null) {
+            return Collections.emptyMap();
+        }
+        final ArrayMap<String, String> result = new ArrayMap<String, String>();
+        for (int i = 0; i < table.values.size(); i++) {
+            if (table.values.keyAt(i).startsWith(prefix)) {
+                result.put(table.values.keyAt(i), table.values.valueAt(i));
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Writes the snapshot to {@code file}, replacing the previous one atomically.
+     * @return false if it could not be written
+     */
+    public boolean writeTo(File file) {
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mTables.size());
+            for (int i = 0; i < mTables.size(); i++) {
+                final Table table = mTables.valueAt(i);
+                out.writeUTF(mTables.keyAt(i));
+                out.writeInt(table.prefixes.length);
+                for (String prefix : table.prefixes) {
+                    out.writeUTF(prefix);
+                }
+                out.writeInt(table.values.size());
+                for (int j = 0; j < table.values.size(); j++) {
+                    final String value = table.values.valueAt(j);
+                    out.writeUTF(table.values.keyAt(j));
+                    out.writeBoolean(value != null);
+                    if (value != null) {
+                        out.writeUTF(value);
+                    }
+                }
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+            if (LOCAL_LOGV) Log.v(TAG, "Wrote " + mTables.size() + " tables to " + file);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write " + file, e);
+            if (fos != null) {
+                atomicFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the snapshot stored in {@code file}, or null if there is none or it is corrupt
+     */
+    public static BootSettingsSnapshot readFrom(File file) {
+        final AtomicFile atomicFile = new AtomicFile(file);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring " + file + " of unknown format");
+                return null;
+            }
+            final BootSettingsSnapshot snapshot = new BootSettingsSnapshot();
+            final int tableCount = in.readInt();
+            for (int i = 0; i < tableCount; i++) {
+                final String tableName = in.readUTF();
+                final String[] prefixes = new String[in.readInt()];
+                for (int j = 0; j < prefixes.length; j++) {
+                    prefixes[j] = in.readUTF();
+                }
+                final int valueCount = in.readInt();
+                final ArrayMap<String, String> values =
+                        new ArrayMap<String, String>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    final String name = in.readUTF();
+                    values.put(name, in.readBoolean() ? in.readUTF() : null);
+                }
+                snapshot.mTables.put(tableName, new Table(prefixes, values));
+            }
+            return snapshot;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+    }
+
+    public static File getFile() {
+        return new File(Environment.getDataSystemDirectory(), FILE_NAME);
+    }
+
+    /**
+     * Returns the snapshot written by the provider, loading it on first use, or null outside
+     * of system_server or once the provider was reached.  Only system_server reads settings
+     * before the provider is published, and it hosts the provider, so it also is the only
+     * process that can tell without an IPC when it was.
+     */
+    static BootSettingsSnapshot getForBoot() {
+        synchronized (sLock) {
+            if (!sLoaded) {
+                sLoaded = true;
+                if (ActivityThread.isSystem()) {
+                    sBootSnapshot = readFrom(getFile());
+                    if (LOCAL_LOGV) Log.v(TAG, "Loaded boot snapshot " + sBootSnapshot);
+                }
+            }
+            return sBootSnapshot;
+        }
+    }
+
+    /**
+     * Drops the snapshot once the provider can serve reads itself.
+     */
+    static void release() {
+        synchronized (sLock) {
+            sLoaded = true;
+            sBootSnapshot = null;
+        }
+    }
+}
@@ -15,11 +15,10 @@
  */
 package com.asylum.keys;
 
+import android.app.ActivityManager;
 import android.app.ActivityManagerNative;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.media.AudioAttributes;
 import android.os.Handler;
 import android.os.RemoteException;
@@ -37,6 +36,7 @@ import android.view.ViewConfiguration;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 import asylum.provider.AsylumSettings;
 
@@ -48,6 +48,9 @@ public class HardwareKeyHandler {
 
     private static final String TAG = "HardwareKeyHandler";
 
+    // Common prefix of the settings holding the key bindings
+    private static final String KEY_SETTINGS_PREFIX = "key_";
+
     private static final int[] SUPPORTED_KEYS = {
             KeyEvent.KEYCODE_HOME,
             KeyEvent.KEYCODE_MENU,
@@ -80,27 +83,65 @@ public class HardwareKeyHandler {
 
     private HwKeySettingsObserver mHwKeySettingsObserver;
 
-    private class HwKeySettingsObserver extends ContentObserver {
+    // Bindings of the current user, updated from the changes pushed by the settings provider
+    private final HashMap<String, String> mBindings = new HashMap<>();
+
+    private class HwKeySettingsObserver extends AsylumSettings.SettingsListener {
         HwKeySettingsObserver(Handler handler) {
             super(handler);
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-            for (HardwareButton button : mButtons.values()) {
-                button.observe(this, resolver);
-                button.updateAssignments();
-            }
+            AsylumSettings.System.registerListenerForUser(mContext.getContentResolver(), this,
+                    UserHandle.USER_ALL);
+            updateAssignments();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            for (HardwareButton button : mButtons.values()) {
-                button.updateAssignments();
+        public void onSettingsChanged(int userId, String[] names, String[] values) {
+            if (names == null) {
+                updateAssignments();
+                return;
+            }
+            if (userId != ActivityManager.getCurrentUser()) {
+                return;
+            }
+            boolean changed = false;
+            for (int i = 0; i < names.length; i++) {
+                if (!names[i].startsWith(KEY_SETTINGS_PREFIX)) {
+                    continue;
+                }
+                if (values[i] != null) {
+                    mBindings.put(names[i], values[i]);
+                } else {
+                    mBindings.remove(names[i]);
+                }
+                changed = true;
+            }
+            if (changed) {
+                applyAssignments();
             }
         }
     }
 
+    /**
+     * Reloads the actions of all buttons. All bindings share the {@link #KEY_SETTINGS_PREFIX}
+     * family, so they are read and cached as a unit in one settings lookup.
+     */
+    private void updateAssignments() {
+        final Map<String, String> bindings = AsylumSettings.System.getStringsForPrefixForUser(
+                mContext.getContentResolver(), KEY_SETTINGS_PREFIX, UserHandle.USER_CURRENT);
+        mBindings.clear();
+        mBindings.putAll(bindings);
+        applyAssignments();
+    }
+
+    private void applyAssignments() {
+        for (HardwareButton button : mButtons.values()) {
+            button.updateAssignments(mBindings);
+        }
+    }
+
     public HardwareKeyHandler(Context context, Handler handler) {
         mContext = context;
         mHandler = handler;
@@ -237,17 +278,15 @@ public class HardwareKeyHandler {
         return true;
     }
 
-    private String getStringFromSettings(String key, String def) {
-        String val = AsylumSettings.System.getStringForUser(
-                mContext.getContentResolver(), key, UserHandle.USER_CURRENT);
-        return (val == null) ? def : val;
-    }
-
     private class HardwareButton {
 
         private String mKey;
         private int mKeyCode;
 
+        private final String mTapSetting;
+        private final String mDoubleTapSetting;
+        private final String mLongPressSetting;
+
         private boolean mButtonPressed;
         private boolean mButtonConsumed;
         private boolean mDoubleTapPending;
@@ -274,29 +313,27 @@ public class HardwareKeyHandler {
             mKeyCode = keyCode;
             String key = KeyEvent.keyCodeToString(keyCode);
             mKey = key.replace("KEYCODE_", "key_").toLowerCase();
+            mTapSetting = mKey + "_action";
+            mDoubleTapSetting = mKey + "_double_tap_action";
+            mLongPressSetting = mKey + "_long_press_action";
         }
 
-        private void observe(ContentObserver observer, ContentResolver resolver) {
-            resolver.registerContentObserver(AsylumSettings.System.getUriFor(
-                    (mKey + "_action")), false, observer,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(AsylumSettings.System.getUriFor(
-                    (mKey + "_long_press_action")), false, observer,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(AsylumSettings.System.getUriFor(
-                    (mKey + "_double_tap_action")), false, observer,
-                    UserHandle.USER_ALL);
-        }
-
-        private void updateAssignments() {
-            mTapAction = getStringFromSettings((mKey + "_action"),
+        /**
+         * Takes this button's actions from the bindings of all keys.
+         */
+        private void updateAssignments(Map<String, String> bindings) {
+            mTapAction = valueOrDefault(bindings.get(mTapSetting),
                     HwKeyHelper.getDefaultTapActionForKeyCode(mContext, mKeyCode));
-            mDoubleTapAction = getStringFromSettings((mKey + "_double_tap_action"),
+            mDoubleTapAction = valueOrDefault(bindings.get(mDoubleTapSetting),
                     HwKeyHelper.getDefaultDoubleTapActionForKeyCode(mContext, mKeyCode));
-            mLongPressAction = getStringFromSettings((mKey + "_long_press_action"),
+            mLongPressAction = valueOrDefault(bindings.get(mLongPressSetting),
                     HwKeyHelper.getDefaultLongPressActionForKeyCode(mContext, mKeyCode));
         }
 
+        private String valueOrDefault(String value, String def) {
+            return (value == null) ? def : value;
+        }
+
         public boolean handleKeyEvent(int repeatCount, boolean down,
                 boolean canceled, boolean longpress, boolean keyguardOn) {
             // If we have released the assistant key, and didn't do anything else
@@ -25,6 +25,7 @@ import android.support.v7.preference.ListPreference;
 import android.support.v7.preference.Preference;
 
 import asylum.provider.AsylumSettings;
+import asylum.provider.AsylumSettingsWriter;
 import com.asylum.utils.AttributeHelper;
 import com.asylum.preference.R;
 
@@ -106,20 +107,43 @@ public class PreferenceManager {
     }
 
 
-    public static int getIntFromSettings(
-            Context context, int settingType, String key, int def) {
+    private static AsylumSettingsWriter sWriter;
+
+    /**
+     * Preferences moved at touch rate write through a shared writer, so that their writes
+     * coalesce.  Reads go through it as well to see the values it still holds.
+     */
+    private static synchronized AsylumSettingsWriter getWriter(Context context) {
+        if (sWriter == null) {
+            sWriter = new AsylumSettingsWriter(
+                    context.getApplicationContext().getContentResolver());
+        }
+        return sWriter;
+    }
+
+    private static int getTable(int settingType) {
         switch (settingType) {
             case ASYLUM_GLOBAL_SETTING:
-                return AsylumSettings.Global.getInt(context.getContentResolver(), key, def);
+                return AsylumSettingsWriter.TABLE_GLOBAL;
             case ASYLUM_SECURE_SETTING:
-                return AsylumSettings.Secure.getIntForUser(context.getContentResolver(), key,
-                        def, UserHandle.USER_CURRENT);
+                return AsylumSettingsWriter.TABLE_SECURE;
             default:
-                return AsylumSettings.System.getIntForUser(context.getContentResolver(), key,
-                        def, UserHandle.USER_CURRENT);
+                return AsylumSettingsWriter.TABLE_SYSTEM;
         }
     }
 
+    private static int getUser(int settingType) {
+        // Global settings are shared by all users
+        return settingType == ASYLUM_GLOBAL_SETTING
+                ? UserHandle.myUserId() : UserHandle.USER_CURRENT;
+    }
+
+    public static int getIntFromSettings(
+            Context context, int settingType, String key, int def) {
+        return getWriter(context).getIntForUser(getTable(settingType), key, def,
+                getUser(settingType));
+    }
+
     public static void putIntInSettings(Context context, int settingType, String key, int val) {
         switch (settingType) {
             case ASYLUM_GLOBAL_SETTING:
@@ -136,19 +160,22 @@ public class PreferenceManager {
         }
     }
 
+    /**
+     * Same as {@link #putIntInSettings} for preferences changed at touch rate: the value is
+     * written in the background, together with the values that follow it shortly.  Call
+     * {@link #flushSettings} when the interaction ends.
+     */
+    public static void queueIntInSettings(Context context, int settingType, String key,
+            int val) {
+        getWriter(context).putIntForUser(getTable(settingType), key, val,
+                getUser(settingType));
+    }
+
     public static String getStringFromSettings(Context context,
             int settingType, String key, String def) {
-        if (!settingExists(context, settingType, key)) return def;
-        switch (settingType) {
-            case ASYLUM_GLOBAL_SETTING:
-                return AsylumSettings.Global.getString(context.getContentResolver(), key);
-            case ASYLUM_SECURE_SETTING:
-                return AsylumSettings.Secure.getStringForUser(context.getContentResolver(), key,
-                        UserHandle.USER_CURRENT);
-            default:
-                return AsylumSettings.System.getStringForUser(context.getContentResolver(), key,
-                        UserHandle.USER_CURRENT);
-        }
+        final String value = getWriter(context).getStringForUser(getTable(settingType), key,
+                getUser(settingType));
+        return value != null ? value : def;
     }
 
     public static void putStringInSettings(
@@ -169,15 +196,15 @@ public class PreferenceManager {
     }
 
     public static boolean settingExists(Context context, int settingType, String key) {
-        switch (settingType) {
-            case ASYLUM_GLOBAL_SETTING:
-                return AsylumSettings.Global.getString(context.getContentResolver(), key) != null;
-            case ASYLUM_SECURE_SETTING:
-                return AsylumSettings.Secure.getStringForUser(context.getContentResolver(), key,
-                        UserHandle.USER_CURRENT) != null;
-            default:
-                return AsylumSettings.System.getStringForUser(context.getContentResolver(), key,
-                        UserHandle.USER_CURRENT) != null;
-        }
+        return getWriter(context).getStringForUser(getTable(settingType), key,
+                getUser(settingType)) != null;
+    }
+
+    /**
+     * Starts writing the settings changed through preferences without waiting for further
+     * changes.  Call when an interaction that changes a setting repeatedly ends.
+     */
+    public static void flushSettings(Context context) {
+        getWriter(context).flush();
     }
 }
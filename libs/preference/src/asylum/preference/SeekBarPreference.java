@@ -120,6 +120,7 @@ public class SeekBarPreference extends Preference
     @Override
     public void onDetached() {
         super.onDetached();
+        PreferenceManager.flushSettings(getContext());
         if (mListDependency != null) {
             mPreferenceManager.unregisterListDependent(this, mListDependency);
         }
@@ -221,13 +222,14 @@ public class SeekBarPreference extends Preference
 
     @Override
     public void onStopTrackingTouch(SeekBar seekBar) {
+        PreferenceManager.flushSettings(getContext());
     }
 
     protected boolean putInt(String key, int value) {
         if (value == getInt(key, -1)) {
             return true;
         }
-        PreferenceManager.putIntInSettings(getContext(),
+        PreferenceManager.queueIntInSettings(getContext(),
                 mSettingType, key, value);
         return true;
     }
@@ -123,6 +123,7 @@ public class ColorPickerPreference extends Preference implements
     @Override
     public void onDetached() {
         super.onDetached();
+        PreferenceManager.flushSettings(getContext());
         if (mListDependency != null) {
             mPreferenceManager.unregisterListDependent(this, mListDependency);
         }
@@ -173,7 +174,7 @@ public class ColorPickerPreference extends Preference implements
         if (value == getInt(key, -1)) {
             return true;
         }
-        PreferenceManager.putIntInSettings(getContext(), mSettingType, key, value);
+        PreferenceManager.queueIntInSettings(getContext(), mSettingType, key, value);
         return true;
     }
 
@@ -33,26 +33,41 @@ import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import asylum.provider.AsylumSettings;
+import asylum.provider.BootSettingsSnapshot;
+import asylum.provider.IAsylumSettingsListener;
 
+import com.android.internal.os.BackgroundThread;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The AsylumSettingsProvider serves as a {@link ContentProvider} for Asylum specific settings
@@ -69,6 +84,10 @@ public class AsylumSettingsProvider extends ContentProvider {
     protected final SparseArray<DatabaseHelper> mDbHelpers
             = new SparseArray<DatabaseHelper>();
 
+    // The settings every read is served from, per user and table. Guarded by this.
+    private final SparseArray<ArrayMap<String, SettingsTable>> mSettingsTables =
+            new SparseArray<ArrayMap<String, SettingsTable>>();
+
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
     private static final int GLOBAL = 3;
@@ -97,6 +116,61 @@ public class AsylumSettingsProvider extends ContentProvider {
                 ITEM_MATCHER, GLOBAL_ITEM_NAME);
     }
 
+    private final GenerationRegistry mGenerationRegistry = new GenerationRegistry();
+
+    private final SettingsListenerRegistry mListenerRegistry =
+            new SettingsListenerRegistry(BackgroundThread.getHandler());
+
+    // Held across every database write and the generation bump publishing it, so that the
+    // generations handed back to a writer belong to the values it wrote
+    private final Object mWriteLock = new Object();
+
+    // Changes of boot snapshot keys are written out together after this delay
+    private static final long BOOT_SNAPSHOT_WRITE_DELAY_MS = 1000;
+
+    // Persists the puts in the background
+    private final SettingsPersister mPersister =
+            new SettingsPersister(BackgroundThread.getHandler());
+
+    private final Runnable mWriteBootSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            writeBootSnapshot();
+        }
+    };
+
+    // Enables loading the tables of each user from its SettingsFile instead of the database
+    private static final String PROP_SETTINGS_FILES = "persist.sys.asylumsettings.binary";
+
+    // Stale settings files are written again together after this delay
+    private static final long SETTINGS_FILE_WRITE_DELAY_MS = 10000;
+
+    private static final int BENCHMARK_ITERATIONS = 10;
+    private static final int STATEMENT_BENCHMARK_ITERATIONS = 1000;
+
+    private final boolean mUseSettingsFiles =
+            SystemProperties.getBoolean(PROP_SETTINGS_FILES, false);
+
+    // The settings file each user's tables are first loaded from. Guarded by this.
+    private final SparseArray<SettingsFile> mSettingsFiles = new SparseArray<SettingsFile>();
+
+    // Users whose settings file is missing or behind their database, with the number of
+    // writes since, which tells whether a file made from a snapshot is still current. Guarded
+    // by mWriteLock.
+    private final SparseIntArray mStaleSettingsFiles = new SparseIntArray();
+
+    private final Runnable mWriteSettingsFiles = new Runnable() {
+        @Override
+        public void run() {
+            writeSettingsFiles();
+        }
+    };
+
+    // Keys written through insert and insertMultiple, and those of them that already held
+    // the written value and were skipped
+    private final LongAdder mKeyWrites = new LongAdder();
+    private final LongAdder mElidedKeyWrites = new LongAdder();
+
     private UserManager mUserManager;
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
@@ -115,8 +189,13 @@ public class AsylumSettingsProvider extends ContentProvider {
 
         mSharedPrefs = getContext().getSharedPreferences(TAG, Context.MODE_PRIVATE);
 
+        // Catch up with changes that never made it into the snapshot, e.g. on first boot
+        BackgroundThread.getHandler().post(mWriteBootSnapshot);
+
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_USER_STOPPED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -128,6 +207,10 @@ public class AsylumSettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_USER_STOPPED)) {
+                    mPersister.flushUser(userId);
+                } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                    mPersister.flush();
                 }
             }
         }, userFilter);
@@ -140,11 +223,18 @@ public class AsylumSettingsProvider extends ContentProvider {
      * @param userId The id of the user that is removed.
      */
     private void onUserRemoved(int userId) {
+        synchronized (mWriteLock) {
+            mStaleSettingsFiles.delete(userId);
+        }
         synchronized (this) {
             // the db file itself will be deleted automatically, but we need to tear down
             // our helpers and other internal bookkeeping.
 
+            mPersister.dropUser(userId);
             mDbHelpers.delete(userId);
+            mSettingsTables.delete(userId);
+            mSettingsFiles.delete(userId);
+            mGenerationRegistry.onUserRemoved(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
@@ -156,6 +246,19 @@ public class AsylumSettingsProvider extends ContentProvider {
     public Bundle call(String method, String request, Bundle args) {
         if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
 
+        // Listener methods, which may name USER_ALL
+        if (AsylumSettings.CALL_METHOD_REGISTER_LISTENER.equals(method)) {
+            registerListener(request, args);
+            return null;
+        }
+        else if (AsylumSettings.CALL_METHOD_UNREGISTER_LISTENER.equals(method)) {
+            final IAsylumSettingsListener listener = getListener(args);
+            if (listener != null) {
+                mListenerRegistry.unregister(listener);
+            }
+            return null;
+        }
+
         int callingUserId = UserHandle.getCallingUserId();
         if (args != null) {
             int reqUser = args.getInt(AsylumSettings.CALL_METHOD_USER_KEY, callingUserId);
@@ -169,13 +272,40 @@ public class AsylumSettingsProvider extends ContentProvider {
 
         // Get methods
         if (AsylumSettings.CALL_METHOD_GET_SYSTEM.equals(method)) {
-            return lookupSingleValue(callingUserId, AsylumSettings.System.CONTENT_URI, request);
+            return addGenerationData(args, DatabaseHelper.TABLE_SYSTEM, callingUserId,
+                    lookupSingleValue(callingUserId, AsylumSettings.System.CONTENT_URI, request));
         }
         else if (AsylumSettings.CALL_METHOD_GET_SECURE.equals(method)) {
-            return lookupSingleValue(callingUserId, AsylumSettings.Secure.CONTENT_URI, request);
+            return addGenerationData(args, DatabaseHelper.TABLE_SECURE, callingUserId,
+                    lookupSingleValue(callingUserId, AsylumSettings.Secure.CONTENT_URI, request));
         }
         else if (AsylumSettings.CALL_METHOD_GET_GLOBAL.equals(method)) {
-            return lookupSingleValue(callingUserId, AsylumSettings.Global.CONTENT_URI, request);
+            return addGenerationData(args, DatabaseHelper.TABLE_GLOBAL, callingUserId,
+                    lookupSingleValue(callingUserId, AsylumSettings.Global.CONTENT_URI, request));
+        }
+        else if (AsylumSettings.CALL_METHOD_GET_MULTI_SYSTEM.equals(method)) {
+            return getMultipleValues(args, DatabaseHelper.TABLE_SYSTEM, callingUserId,
+                    AsylumSettings.System.CONTENT_URI);
+        }
+        else if (AsylumSettings.CALL_METHOD_GET_MULTI_SECURE.equals(method)) {
+            return getMultipleValues(args, DatabaseHelper.TABLE_SECURE, callingUserId,
+                    AsylumSettings.Secure.CONTENT_URI);
+        }
+        else if (AsylumSettings.CALL_METHOD_GET_MULTI_GLOBAL.equals(method)) {
+            return getMultipleValues(args, DatabaseHelper.TABLE_GLOBAL, callingUserId,
+                    AsylumSettings.Global.CONTENT_URI);
+        }
+        else if (AsylumSettings.CALL_METHOD_LIST_SYSTEM.equals(method)) {
+            return addGenerationData(args, DatabaseHelper.TABLE_SYSTEM, callingUserId,
+                    lookupValuesForPrefix(callingUserId, AsylumSettings.System.CONTENT_URI, args));
+        }
+        else if (AsylumSettings.CALL_METHOD_LIST_SECURE.equals(method)) {
+            return addGenerationData(args, DatabaseHelper.TABLE_SECURE, callingUserId,
+                    lookupValuesForPrefix(callingUserId, AsylumSettings.Secure.CONTENT_URI, args));
+        }
+        else if (AsylumSettings.CALL_METHOD_LIST_GLOBAL.equals(method)) {
+            return addGenerationData(args, DatabaseHelper.TABLE_GLOBAL, callingUserId,
+                    lookupValuesForPrefix(callingUserId, AsylumSettings.Global.CONTENT_URI, args));
         }
 
         // Put methods - new value is in the args bundle under the key named by
@@ -183,17 +313,35 @@ public class AsylumSettingsProvider extends ContentProvider {
         final String newValue = (args == null)
                 ? null : args.getString(Settings.NameValueTable.VALUE);
 
-        android.util.Log.d("TEST", "before permission check");
-
         // Framework can't do automatic permission checking for calls, so we need
         // to do it here.
-        if (AsylumSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
+        if (AsylumSettings.CALL_METHOD_PUT_SYSTEM.equals(method)
+                || AsylumSettings.CALL_METHOD_PUT_MULTI_SYSTEM.equals(method)) {
             enforceWritePermission(android.Manifest.permission.WRITE_SETTINGS);
         } else {
             enforceWritePermission(android.Manifest.permission.WRITE_SECURE_SETTINGS);
         }
 
-        android.util.Log.d("TEST", "request - " + request + " : newValue - " + newValue);
+        if (LOCAL_LOGV) Log.v(TAG, "request - " + request + " : newValue - " + newValue);
+
+        // Callers tracking generations get back the ones their values were published under
+        final Bundle reply = (args != null
+                && args.getBoolean(AsylumSettings.CALL_METHOD_TRACK_GENERATION_KEY))
+                ? new Bundle() : null;
+
+        // Multi-key put methods
+        if (AsylumSettings.CALL_METHOD_PUT_MULTI_SYSTEM.equals(method)) {
+            return replyToPut(reply, insertMultipleForUser(callingUserId,
+                    AsylumSettings.System.CONTENT_URI, args, reply) >= 0);
+        }
+        else if (AsylumSettings.CALL_METHOD_PUT_MULTI_SECURE.equals(method)) {
+            return replyToPut(reply, insertMultipleForUser(callingUserId,
+                    AsylumSettings.Secure.CONTENT_URI, args, reply) >= 0);
+        }
+        else if (AsylumSettings.CALL_METHOD_PUT_MULTI_GLOBAL.equals(method)) {
+            return replyToPut(reply, insertMultipleForUser(callingUserId,
+                    AsylumSettings.Global.CONTENT_URI, args, reply) >= 0);
+        }
 
         // Put methods
         final ContentValues values = new ContentValues();
@@ -201,16 +349,66 @@ public class AsylumSettingsProvider extends ContentProvider {
         values.put(Settings.NameValueTable.VALUE, newValue);
 
         if (AsylumSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
-            insertForUser(callingUserId, AsylumSettings.System.CONTENT_URI, values);
+            return replyToPut(reply, insertForUser(callingUserId,
+                    AsylumSettings.System.CONTENT_URI, values, reply) != null);
         }
         else if (AsylumSettings.CALL_METHOD_PUT_SECURE.equals(method)) {
-            insertForUser(callingUserId, AsylumSettings.Secure.CONTENT_URI, values);
+            return replyToPut(reply, insertForUser(callingUserId,
+                    AsylumSettings.Secure.CONTENT_URI, values, reply) != null);
         }
         else if (AsylumSettings.CALL_METHOD_PUT_GLOBAL.equals(method)) {
-            insertForUser(callingUserId, AsylumSettings.Global.CONTENT_URI, values);
+            return replyToPut(reply, insertForUser(callingUserId,
+                    AsylumSettings.Global.CONTENT_URI, values, reply) != null);
         }
 
-        return null;
+        return reply;
+    }
+
+    /**
+     * Flags the reply of a put call whose write was rolled back, so that the caller neither
+     * reports success nor caches the values it sent.
+     */
+    private static Bundle replyToPut(Bundle reply, boolean written) {
+        if (written) {
+            return reply;
+        }
+        final Bundle failed = reply != null ? reply : new Bundle();
+        failed.putBoolean(AsylumSettings.CALL_METHOD_WRITE_FAILED_KEY, true);
+        return failed;
+    }
+
+    /**
+     * Registers a listener for the changes of a table.
+     * @param tableName The table to listen to.
+     * @param args The call arguments holding the listener and the user to listen to.
+     */
+    private void registerListener(String tableName, Bundle args) {
+        if (!DatabaseHelper.TABLE_SYSTEM.equals(tableName)
+                && !DatabaseHelper.TABLE_SECURE.equals(tableName)
+                && !DatabaseHelper.TABLE_GLOBAL.equals(tableName)) {
+            throw new IllegalArgumentException("Unknown table " + tableName);
+        }
+        final IAsylumSettingsListener listener = getListener(args);
+        if (listener == null) {
+            throw new IllegalArgumentException("No listener given");
+        }
+        final int callingUserId = UserHandle.getCallingUserId();
+        int userId = args.getInt(AsylumSettings.CALL_METHOD_USER_KEY, callingUserId);
+        if (userId == UserHandle.USER_ALL) {
+            getContext().enforceCallingOrSelfPermission(
+                    android.Manifest.permission.INTERACT_ACROSS_USERS_FULL,
+                    "Listening to settings of all users");
+        } else if (userId != callingUserId) {
+            userId = ActivityManager.handleIncomingUser(Binder.getCallingPid(),
+                    Binder.getCallingUid(), userId, false, true, "listen to settings", null);
+        }
+        mListenerRegistry.register(listener, tableName, userId);
+    }
+
+    private static IAsylumSettingsListener getListener(Bundle args) {
+        final IBinder binder = args != null
+                ? args.getBinder(AsylumSettings.CALL_METHOD_LISTENER_KEY) : null;
+        return binder != null ? IAsylumSettingsListener.Stub.asInterface(binder) : null;
     }
 
     private void enforceWritePermission(String permission) {
@@ -222,6 +420,27 @@ public class AsylumSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Adds the shared memory generation counter of a table to a get reply if the caller asked
+     * to track generations.
+     * @param args The arguments of the call.
+     * @param tableName The table the reply was read from.
+     * @param userId The id of the user the reply was read for.
+     * @param result The reply, may be {@code null}.
+     * @return The reply, copied if generation data had to be added to it.
+     */
+    private Bundle addGenerationData(Bundle args, String tableName, int userId, Bundle result) {
+        if (result == null || args == null
+                || !args.getBoolean(AsylumSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+            return result;
+        }
+        // Replies may be shared constants, never modify them in place
+        final Bundle reply = new Bundle(result);
+        mGenerationRegistry.addGenerationData(reply, tableName,
+                getUserIdForTable(tableName, userId));
+        return reply;
+    }
+
     /**
      * Looks up a single value for a specific user, uri, and key.
      * @param userId The id of the user to perform the lookup for.
@@ -230,27 +449,111 @@ public class AsylumSettingsProvider extends ContentProvider {
      * @return A single value stored in a {@link Bundle}.
      */
     private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
+            final String value = getSettingsTable(getTableNameFromUri(uri), userId)
+                    .getValue(key);
+            return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
+                    value);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+    }
 
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
-            }
+    /**
+     * Answers a get-multi call. A caller tracking generations also gets the generation counter
+     * of the table and the generation of each key, read before the values: a write racing
+     * with the lookup can only make a value look older than it is, so the caller may cache
+     * the reply right away.
+     */
+    private Bundle getMultipleValues(Bundle args, String tableName, int userId, Uri uri) {
+        if (args == null || !args.getBoolean(AsylumSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+            return lookupMultipleValues(userId, uri, args);
+        }
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        final Bundle reply = new Bundle();
+        mGenerationRegistry.addGenerationData(reply, tableName, tableUserId);
+        final String[] names = args.getStringArray(AsylumSettings.CALL_METHOD_NAMES_KEY);
+        if (names != null) {
+            mGenerationRegistry.addWriteGenerationData(reply, tableName, tableUserId, names);
+        }
+        final Bundle result = lookupMultipleValues(userId, uri, args);
+        if (result == null) {
+            return null;
+        }
+        reply.putAll(result);
+        return reply;
+    }
+
+    /**
+     * Looks up several values for a specific user and uri at one state of the table.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call arguments holding the keys to look up.
+     * @return The values stored in a {@link Bundle}, in the order of the requested keys.
+     */
+    private Bundle lookupMultipleValues(int userId, Uri uri, Bundle args) {
+        final String[] names = args != null
+                ? args.getStringArray(AsylumSettings.CALL_METHOD_NAMES_KEY) : null;
+        if (names == null) {
+            throw new IllegalArgumentException("No keys to look up");
+        }
+
+        final String[] values;
+        try {
+            values = getSettingsTable(getTableNameFromUri(uri), userId).getValues(names);
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
+        final Bundle result = new Bundle();
+        result.putStringArray(AsylumSettings.CALL_METHOD_VALUES_KEY, values);
+        return result;
+    }
 
-        return NULL_SETTING;
+    /**
+     * Looks up every key starting with a prefix for a specific user and uri. The lookup is a
+     * range view of the sorted settings rather than a LIKE pattern, so '_' and '%' in setting
+     * names need no escaping.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call arguments holding the prefix.
+     * @return The keys found and their values stored in a {@link Bundle}, ordered by key.
+     */
+    private Bundle lookupValuesForPrefix(int userId, Uri uri, Bundle args) {
+        final String prefix = args != null
+                ? args.getString(AsylumSettings.CALL_METHOD_PREFIX_KEY) : null;
+        if (prefix == null) {
+            throw new IllegalArgumentException("No prefix to look up");
+        }
+
+        try {
+            final TreeMap<String, String> found = getSettingsTable(getTableNameFromUri(uri),
+                    userId).getValuesForPrefix(prefix);
+            final String[] names = found.keySet().toArray(new String[found.size()]);
+            final String[] values = found.values().toArray(new String[found.size()]);
+            final Bundle result = new Bundle();
+            result.putStringArray(AsylumSettings.CALL_METHOD_NAMES_KEY, names);
+            result.putStringArray(AsylumSettings.CALL_METHOD_VALUES_KEY, values);
+            return result;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the smallest string greater than every string starting with {@code prefix}, or
+     * {@code null} if there is none.
+     */
+    static String getPrefixUpperBound(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            final char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
     }
 
     @Override
@@ -280,13 +583,24 @@ public class AsylumSettingsProvider extends ContentProvider {
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
 
+        Cursor returnCursor = queryFromMemory(userId, uri, code, tableName, projection,
+                selection, selectionArgs, sortOrder);
+        if (returnCursor != null) {
+            setNotificationUri(returnCursor, uri, userId);
+            return returnCursor;
+        }
+
+        // The database has to hold every put before it can answer
+        if (!mPersister.flushUser(getUserIdForTable(tableName, userId))) {
+            Log.w(TAG, "Can't query " + tableName + " while queued settings can't be persisted");
+            return null;
+        }
         DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(tableName);
 
-        Cursor returnCursor;
         if (isItemUri(code)) {
             // The uri is looking for an element with a specific name
             returnCursor = queryBuilder.query(db, projection, NAME_SELECTION,
@@ -296,9 +610,68 @@ public class AsylumSettingsProvider extends ContentProvider {
                     null, sortOrder);
         }
 
+        setNotificationUri(returnCursor, uri, userId);
+        return returnCursor;
+    }
+
+    /**
+     * Answers the queries settings clients make from the in-memory settings: single keys,
+     * by item uri or name selection, and whole tables, reading names and values only.
+     * @return The cursor, or {@code null} if the query needs the database.
+     */
+    private Cursor queryFromMemory(int userId, Uri uri, int code, String tableName,
+            String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (projection == null || (sortOrder != null
+                && !Settings.NameValueTable.NAME.equals(sortOrder))) {
+            return null;
+        }
+        final int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (Settings.NameValueTable.NAME.equals(projection[i])) {
+                columns[i] = 0;
+            } else if (Settings.NameValueTable.VALUE.equals(projection[i])) {
+                columns[i] = 1;
+            } else {
+                return null;
+            }
+        }
+
+        final String name;
+        if (isItemUri(code)) {
+            // The selection is ignored for item uris, as by the database path
+            name = uri.getLastPathSegment();
+        } else if (selection == null) {
+            name = null;
+        } else if (isNameSelection(selection) && selectionArgs != null
+                && selectionArgs.length == 1) {
+            name = selectionArgs[0];
+        } else {
+            return null;
+        }
+
+        final SettingsTable table = getSettingsTable(tableName, userId);
+        final TreeMap<String, String> rows = name != null ? table.getRow(name)
+                : table.getAllValues();
+        final MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+        final Object[] row = new Object[projection.length];
+        for (Map.Entry<String, String> entry : rows.entrySet()) {
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = columns[i] == 0 ? entry.getKey() : entry.getValue();
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static boolean isNameSelection(String selection) {
+        final String compact = selection.replace(" ", "");
+        return compact.equals(Settings.NameValueTable.NAME + "=?");
+    }
+
+    private void setNotificationUri(Cursor cursor, Uri uri, int userId) {
         // the default Cursor interface does not support per-user observation
         try {
-            AbstractCursor abstractCursor = (AbstractCursor) returnCursor;
+            AbstractCursor abstractCursor = (AbstractCursor) cursor;
             abstractCursor.setNotificationUri(getContext().getContentResolver(), uri, userId);
         } catch (ClassCastException e) {
             // details of the concrete Cursor implementation have changed and this code has
@@ -306,8 +679,6 @@ public class AsylumSettingsProvider extends ContentProvider {
             Log.wtf(TAG, "Incompatible cursor derivation");
             throw e;
         }
-
-        return returnCursor;
     }
 
     @Override
@@ -352,25 +723,38 @@ public class AsylumSettingsProvider extends ContentProvider {
         DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
+        synchronized (mWriteLock) {
+            markSettingsFileStaleLocked(getUserIdForTable(tableName, userId));
+            // Queued puts must not land after this write, nor be lost by the reload below
+            if (!mPersister.flushUser(getUserIdForTable(tableName, userId))) {
+                Log.w(TAG, "Not inserting into " + tableName
+                        + " while queued settings can't be persisted");
+                return 0;
+            }
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    if (value == null) {
+                        continue;
+                    }
+
+                    long rowId = db.insert(tableName, null, value);
+
+                    if (rowId >= 0) {
+                        numRowsAffected++;
+                    } else {
+                        return 0;
+                    }
                 }
 
-                long rowId = db.insert(tableName, null, value);
-
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
-                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
 
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+            if (numRowsAffected > 0) {
+                publishWriteLocked(tableName, userId, null, null, null);
+            }
         }
 
         if (numRowsAffected > 0) {
@@ -383,18 +767,20 @@ public class AsylumSettingsProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        return insertForUser(UserHandle.getCallingUserId(), uri, values, null);
     }
 
     /**
-     * Performs insert for a specific user.
+     * Performs insert for a specific user. Writing the value the setting holds already changes
+     * nothing and notifies nobody.
      * @param userId The user id to perform the insert for.
      * @param uri The content:// URI of the insertion request.
      * @param values A sets of column_name/value pairs to add to the database.
      *    This must not be {@code null}.
+     * @param reply If not {@code null}, receives the generation the value was published under.
      * @return
      */
-    private Uri insertForUser(int userId, Uri uri, ContentValues values) {
+    private Uri insertForUser(int userId, Uri uri, ContentValues values, Bundle reply) {
         if (uri == null) {
             throw new IllegalArgumentException("Uri cannot be null");
         }
@@ -417,20 +803,145 @@ public class AsylumSettingsProvider extends ContentProvider {
             validateSecureSettingValue(name, value);
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        final String[] names = new String[] { name };
+        final String[] newValues = new String[] { value };
+        final boolean written;
+        synchronized (mWriteLock) {
+            mKeyWrites.increment();
+            if (getSettingsTable(tableName, userId).holds(name, value)) {
+                mElidedKeyWrites.increment();
+                elideWriteLocked(tableName, userId, names, reply);
+                return Uri.withAppendedPath(uri, name);
+            }
+            markSettingsFileStaleLocked(getUserIdForTable(tableName, userId));
+            if (mPersister.isWriteBehind()) {
+                mPersister.queue(dbHelper, getUserIdForTable(tableName, userId), tableName,
+                        names, newValues);
+                written = true;
+            } else {
+                written = dbHelper.putValue(tableName, name, value);
+            }
+            if (written) {
+                publishWriteLocked(tableName, userId, names, newValues, reply);
+            }
+        }
 
         Uri returnUri = null;
-        if (rowId > -1) {
+        if (written) {
             returnUri = Uri.withAppendedPath(uri, name);
             notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
+            if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
         }
 
         return returnUri;
     }
 
+    /**
+     * Writes several settings of a table for a specific user in one transaction. Generations
+     * are bumped once for the whole batch, and the uri of each changed key notified once, after
+     * it committed. Keys that hold their value already are left out.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table.
+     * @param args The call arguments holding the names and values to write.
+     * @param reply If not {@code null}, receives the generations the values were published
+     *    under.
+     * @return Number of settings written, -1 if the batch was rolled back.
+     */
+    private int insertMultipleForUser(int userId, Uri uri, Bundle args, Bundle reply) {
+        final String[] names = args != null
+                ? args.getStringArray(AsylumSettings.CALL_METHOD_NAMES_KEY) : null;
+        final String[] values = args != null
+                ? args.getStringArray(AsylumSettings.CALL_METHOD_VALUES_KEY) : null;
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Names and values must come in pairs");
+        }
+        if (names.length == 0) {
+            return 0;
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
+
+        // Validate everything first so that a bad value doesn't leave half a batch behind
+        for (int i = 0; i < names.length; i++) {
+            if (DatabaseHelper.TABLE_SYSTEM.equals(tableName)) {
+                validateSystemSettingNameValue(names[i], values[i]);
+            } else if (DatabaseHelper.TABLE_SECURE.equals(tableName)) {
+                validateSecureSettingValue(names[i], values[i]);
+            }
+        }
+
+        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+
+        final String[] changedNames;
+        final String[] changedValues;
+        synchronized (mWriteLock) {
+            // Only write the keys that change. Later values of a key win, like in the database.
+            final SettingsTable table = getSettingsTable(tableName, userId);
+            final ArrayMap<String, String> changed = new ArrayMap<String, String>(names.length);
+            for (int i = 0; i < names.length; i++) {
+                changed.put(names[i], values[i]);
+            }
+            // Counted per distinct key, a key repeated in the batch is written once
+            final int keyCount = changed.size();
+            mKeyWrites.add(keyCount);
+            for (int i = changed.size() - 1; i >= 0; i--) {
+                if (table.holds(changed.keyAt(i), changed.valueAt(i))) {
+                    changed.removeAt(i);
+                }
+            }
+            mElidedKeyWrites.add(keyCount - changed.size());
+            if (changed.isEmpty()) {
+                elideWriteLocked(tableName, userId, names, reply);
+                return names.length;
+            }
+            changedNames = new String[changed.size()];
+            changedValues = new String[changed.size()];
+            for (int i = 0; i < changed.size(); i++) {
+                changedNames[i] = changed.keyAt(i);
+                changedValues[i] = changed.valueAt(i);
+            }
+
+            markSettingsFileStaleLocked(getUserIdForTable(tableName, userId));
+            if (mPersister.isWriteBehind()) {
+                // Persisted in one transaction with whatever else is queued for the user
+                mPersister.queue(dbHelper, getUserIdForTable(tableName, userId), tableName,
+                        changedNames, changedValues);
+            } else {
+                final SQLiteDatabase db = dbHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < changedNames.length; i++) {
+                        if (!dbHelper.putValue(tableName, changedNames[i], changedValues[i])) {
+                            Log.w(TAG, "Failed to insert " + changedNames[i] + " into "
+                                    + tableName + ", dropping the batch");
+                            return -1;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            publishWriteLocked(tableName, userId, changedNames, changedValues, null);
+            if (reply != null) {
+                // The writer caches the whole batch, the skipped keys under their current
+                // generations
+                mGenerationRegistry.addWriteGenerationData(reply, tableName,
+                        getUserIdForTable(tableName, userId), names);
+            }
+        }
+
+        // Observers of a key expect its own uri, like after a single put
+        for (String name : changedNames) {
+            notifyChange(Uri.withAppendedPath(uri, name), tableName, userId);
+        }
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + names.length + " setting(s) written");
+
+        return names.length;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         if (uri == null) {
@@ -450,7 +961,19 @@ public class AsylumSettingsProvider extends ContentProvider {
                     callingUserId));
 
             SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            synchronized (mWriteLock) {
+                markSettingsFileStaleLocked(getUserIdForTable(tableName, callingUserId));
+                // Queued puts must not land after this write, nor be lost by the reload below
+                if (!mPersister.flushUser(getUserIdForTable(tableName, callingUserId))) {
+                    Log.w(TAG, "Not deleting from " + tableName
+                            + " while queued settings can't be persisted");
+                    return 0;
+                }
+                numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                if (numRowsAffected > 0) {
+                    publishWriteLocked(tableName, callingUserId, null, null, null);
+                }
+            }
 
             if (numRowsAffected > 0) {
                 notifyChange(uri, tableName, callingUserId);
@@ -493,7 +1016,20 @@ public class AsylumSettingsProvider extends ContentProvider {
                 callingUserId));
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        final int numRowsAffected;
+        synchronized (mWriteLock) {
+            markSettingsFileStaleLocked(getUserIdForTable(tableName, callingUserId));
+            // Queued puts must not land after this write, nor be lost by the reload below
+            if (!mPersister.flushUser(getUserIdForTable(tableName, callingUserId))) {
+                Log.w(TAG, "Not updating " + tableName
+                        + " while queued settings can't be persisted");
+                return 0;
+            }
+            numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+            if (numRowsAffected > 0) {
+                publishWriteLocked(tableName, callingUserId, null, null, null);
+            }
+        }
 
         if (numRowsAffected > 0) {
             notifyChange(uri, tableName, callingUserId);
@@ -503,8 +1039,88 @@ public class AsylumSettingsProvider extends ContentProvider {
         return numRowsAffected;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Key writes: " + mKeyWrites.sum() + " elided: " + mElidedKeyWrites.sum());
+        mPersister.dump(pw);
+        pw.println("Settings files: " + (mUseSettingsFiles ? "enabled" : "disabled"));
+        synchronized (mWriteLock) {
+            pw.println("Stale settings files: " + mStaleSettingsFiles);
+        }
+        if (args != null && args.length > 0 && "--benchmark-load".equals(args[0])) {
+            benchmarkLoad(pw);
+        } else if (args != null && args.length > 0
+                && "--benchmark-statements".equals(args[0])) {
+            DatabaseHelper.benchmarkStatements(pw, STATEMENT_BENCHMARK_ITERATIONS);
+        }
+    }
+
     // endregion Content Provider Methods
 
+    /**
+     * Compares loading the tables of every tracked user from its database, schema check
+     * included, with loading them from a settings file made from the same values. The file is
+     * a temporary copy, so this works whether or not settings files are enabled. Both sources
+     * are read through the page cache, so the times leave out the disk reads of a real cold
+     * start.
+     */
+    private void benchmarkLoad(PrintWriter pw) {
+        final int[] userIds;
+        synchronized (this) {
+            userIds = new int[mDbHelpers.size()];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = mDbHelpers.keyAt(i);
+            }
+        }
+        final File file = new File(getContext().getCacheDir(), "benchmark_settings.bin");
+        for (int userId : userIds) {
+            final String[] tableNames = getTableNamesForUser(userId);
+            final String dbPath =
+                    getContext().getDatabasePath(DatabaseHelper.dbNameForUser(userId)).getPath();
+            final ArrayMap<String, TreeMap<String, String>> tables =
+                    new ArrayMap<String, TreeMap<String, String>>();
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                final SQLiteDatabase db = SQLiteDatabase.openDatabase(dbPath, null,
+                        SQLiteDatabase.OPEN_READONLY);
+                try {
+                    db.getVersion();
+                    for (String tableName : tableNames) {
+                        tables.put(tableName, SettingsTable.load(db, tableName));
+                    }
+                } finally {
+                    db.close();
+                }
+            }
+            final long sqliteNanos = (SystemClock.elapsedRealtimeNanos() - start)
+                    / BENCHMARK_ITERATIONS;
+
+            if (!SettingsFile.write(file, DatabaseHelper.DATABASE_VERSION, tables)) {
+                pw.println("User " + userId + ": can't write " + file);
+                continue;
+            }
+            int count = 0;
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                final SettingsFile settingsFile =
+                        SettingsFile.open(file, DatabaseHelper.DATABASE_VERSION);
+                count = 0;
+                for (String tableName : tableNames) {
+                    count += settingsFile.readTable(tableName).size();
+                }
+            }
+            final long fileNanos = (SystemClock.elapsedRealtimeNanos() - start)
+                    / BENCHMARK_ITERATIONS;
+            final long fileSize = file.length();
+            SettingsFile.delete(file);
+
+            pw.println("User " + userId + ": " + count + " settings, sqlite "
+                    + sqliteNanos / 1000 + "us, settings file " + fileNanos / 1000 + "us ("
+                    + fileSize + " bytes) per load");
+        }
+    }
+
     /**
      * Tries to get a {@link DatabaseHelper} for the specified user and if it does not exist, a
      * new instance of {@link DatabaseHelper} is created for the specified user and returned.
@@ -538,6 +1154,30 @@ public class AsylumSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the in-memory settings of a table for a user, which serve every read. The
+     * values are loaded from the settings file or the database on first access.
+     * @param tableName The table.
+     * @param userId The user, mapped to the owner for the global table.
+     */
+    private SettingsTable getSettingsTable(String tableName, int userId) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        final DatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
+        synchronized (this) {
+            ArrayMap<String, SettingsTable> tables = mSettingsTables.get(tableUserId);
+            if (tables == null) {
+                tables = new ArrayMap<String, SettingsTable>();
+                mSettingsTables.put(tableUserId, tables);
+            }
+            SettingsTable table = tables.get(tableName);
+            if (table == null) {
+                table = new SettingsTable(dbHelper, tableName, mSettingsFiles.get(tableUserId));
+                tables.put(tableName, table);
+            }
+            return table;
+        }
+    }
+
     /**
      * Check if a {@link DatabaseHelper} exists for a user and if it doesn't, a new helper is
      * created and added to the list of tracked database helpers
@@ -565,9 +1205,127 @@ public class AsylumSettingsProvider extends ContentProvider {
         // written by the first, but that's benign: the SQLite helper implementation
         // manages concurrency itself, and it's important that we not run the db
         // initialization with any of our own locks held, so we're fine.
+        if (openSettingsFile(userId)) {
+            // The tables load from the settings file, the database opens on the first write
+            return;
+        }
         dbHelper.getWritableDatabase();
     }
 
+    /**
+     * Maps the settings file of a user, or schedules migrating the database of the user to
+     * one if it is missing or out of date.
+     * @return whether the tables of the user can be loaded from the file
+     */
+    private boolean openSettingsFile(int userId) {
+        final File file = SettingsFile.getFileForUser(getContext(), userId);
+        if (!mUseSettingsFiles) {
+            // A file left from when it was enabled would be stale once it is enabled again
+            SettingsFile.delete(file);
+            return false;
+        }
+        final SettingsFile settingsFile =
+                SettingsFile.open(file, DatabaseHelper.DATABASE_VERSION);
+        if (settingsFile == null) {
+            synchronized (mWriteLock) {
+                markSettingsFileStaleLocked(userId);
+            }
+            return false;
+        }
+        synchronized (this) {
+            mSettingsFiles.put(userId, settingsFile);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the settings file of a user ahead of a write to its database, since loading the
+     * file afterwards would lose the write, and schedules writing a new one. Must be called
+     * with {@link #mWriteLock} held.
+     */
+    private void markSettingsFileStaleLocked(int userId) {
+        if (!mUseSettingsFiles) {
+            return;
+        }
+        if (mStaleSettingsFiles.indexOfKey(userId) < 0) {
+            SettingsFile.delete(SettingsFile.getFileForUser(getContext(), userId));
+        }
+        mStaleSettingsFiles.put(userId, mStaleSettingsFiles.get(userId) + 1);
+        BackgroundThread.getHandler().removeCallbacks(mWriteSettingsFiles);
+        BackgroundThread.getHandler().postDelayed(mWriteSettingsFiles,
+                SETTINGS_FILE_WRITE_DELAY_MS);
+    }
+
+    /**
+     * Writes the stale settings files from the tables of their users, which also migrates the
+     * databases that never had one. Only the snapshot of the tables is taken under
+     * {@link #mWriteLock}. The queued values are persisted and the file is written next to
+     * its final place without it, and the file only replaces the old one if no write came in
+     * since the snapshot, so it never gets ahead of or behind the database.
+     */
+    private void writeSettingsFiles() {
+        final SparseIntArray writeCounts;
+        final SparseArray<ArrayMap<String, TreeMap<String, String>>> snapshots =
+                new SparseArray<ArrayMap<String, TreeMap<String, String>>>();
+        synchronized (mWriteLock) {
+            writeCounts = mStaleSettingsFiles.clone();
+            for (int i = 0; i < writeCounts.size(); i++) {
+                final int userId = writeCounts.keyAt(i);
+                final ArrayMap<String, TreeMap<String, String>> tables =
+                        new ArrayMap<String, TreeMap<String, String>>();
+                for (String tableName : getTableNamesForUser(userId)) {
+                    tables.put(tableName, getSettingsTable(tableName, userId).getAllValues());
+                }
+                snapshots.put(userId, tables);
+            }
+        }
+
+        boolean retry = false;
+        for (int i = 0; i < snapshots.size(); i++) {
+            final int userId = snapshots.keyAt(i);
+            // Everything in the snapshot was queued or written by now
+            if (!mPersister.flushUser(userId)) {
+                // The file must not get ahead of the database
+                retry = true;
+                continue;
+            }
+            final File file = SettingsFile.getFileForUser(getContext(), userId);
+            final File newFile = new File(file.getPath() + ".new");
+            if (!SettingsFile.write(newFile, DatabaseHelper.DATABASE_VERSION,
+                    snapshots.valueAt(i))) {
+                retry = true;
+                continue;
+            }
+            synchronized (mWriteLock) {
+                final int index = mStaleSettingsFiles.indexOfKey(userId);
+                if (index < 0 || mStaleSettingsFiles.valueAt(index) != writeCounts.get(userId)) {
+                    // Written to since the snapshot, or removed; the next run catches up
+                    SettingsFile.delete(newFile);
+                } else if (newFile.renameTo(file)) {
+                    mStaleSettingsFiles.removeAt(index);
+                    if (LOCAL_LOGV) Log.v(TAG, "Wrote settings file of user " + userId);
+                } else {
+                    Log.w(TAG, "Can't move " + newFile + " to " + file);
+                    SettingsFile.delete(newFile);
+                    retry = true;
+                }
+            }
+        }
+        if (retry) {
+            BackgroundThread.getHandler().removeCallbacks(mWriteSettingsFiles);
+            BackgroundThread.getHandler().postDelayed(mWriteSettingsFiles,
+                    SETTINGS_FILE_WRITE_DELAY_MS);
+        }
+    }
+
+    private static String[] getTableNamesForUser(int userId) {
+        if (userId == UserHandle.USER_OWNER) {
+            return new String[] { DatabaseHelper.TABLE_SYSTEM, DatabaseHelper.TABLE_SECURE,
+                    DatabaseHelper.TABLE_GLOBAL };
+        }
+        return new String[] { DatabaseHelper.TABLE_SYSTEM, DatabaseHelper.TABLE_SECURE };
+    }
+
     /**
      * Makes sure the caller has permission to write this data.
      * @param tableName supplied by the caller
@@ -651,19 +1409,26 @@ public class AsylumSettingsProvider extends ContentProvider {
     }
 
     /**
-     * Modify setting version for an updated table before notifying of change. The
-     * {@link AsylumSettings} class uses these to provide client-side caches.
-     * @param uri to send notifications for
+     * Modify setting version for an updated table. The {@link AsylumSettings} class uses these
+     * to provide client-side caches. The version lives in the shared memory
+     * {@link GenerationRegistry}; the version system property is only bumped when no shared
+     * memory counter could be published. Must be called with {@link #mWriteLock} held, right
+     * after the write it publishes.
      * @param userId
+     * @param names of the changed settings, or {@code null} if any setting of the table may
+     *     have changed
      */
-    private void notifyChange(Uri uri, String tableName, int userId) {
+    private void incrementGenerationLocked(String tableName, int userId, String[] names) {
         String property = null;
-        final boolean isGlobal = tableName.equals(DatabaseHelper.TABLE_GLOBAL);
-        if (tableName.equals(DatabaseHelper.TABLE_SYSTEM)) {
+        final boolean tracked = mGenerationRegistry.incrementGeneration(tableName,
+                getUserIdForTable(tableName, userId), names);
+        if (tracked) {
+            // Clients check the shared memory counter, no need for the property round trip
+        } else if (tableName.equals(DatabaseHelper.TABLE_SYSTEM)) {
             property = AsylumSettings.System.SYS_PROP_ASYLUM_SETTING_VERSION;
         } else if (tableName.equals(DatabaseHelper.TABLE_SECURE)) {
             property = AsylumSettings.Secure.SYS_PROP_ASYLUM_SETTING_VERSION;
-        } else if (isGlobal) {
+        } else if (tableName.equals(DatabaseHelper.TABLE_GLOBAL)) {
             property = AsylumSettings.Global.SYS_PROP_ASYLUM_SETTING_VERSION;
         }
 
@@ -672,7 +1437,72 @@ public class AsylumSettingsProvider extends ContentProvider {
             if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
             SystemProperties.set(property, Long.toString(version));
         }
+    }
 
+    /**
+     * Publishes a write: applies it to the in-memory table, bumps its generations and queues it
+     * for the listeners. Must be called with {@link #mWriteLock} held, right after the write.
+     *
+     * The table is held while the values change and the generations move, and lookups hold it
+     * too. A reader thus sees either the old values under the old generations or the new ones
+     * under the new generations, so no client caches a new value under an old generation, next
+     * to older values of the same batch its cache still takes for current.
+     * @param names of the changed settings, or {@code null} if any setting of the table may
+     *     have changed, in which case the table is reloaded
+     * @param values the new values in the order of {@code names}
+     * @param reply If not {@code null}, receives the generations the values were published
+     *     under.
+     */
+    private void publishWriteLocked(String tableName, int userId, String[] names,
+            String[] values, Bundle reply) {
+        final SettingsTable table = getSettingsTable(tableName, userId);
+        synchronized (table) {
+            if (names != null) {
+                table.putValues(names, values);
+            } else {
+                table.invalidate();
+            }
+            incrementGenerationLocked(tableName, userId, names);
+        }
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        maybeScheduleBootSnapshotWrite(tableName, tableUserId, names);
+        final boolean hasListeners = mListenerRegistry.hasListeners();
+        if (reply == null && !hasListeners) {
+            return;
+        }
+        final Bundle generationData = reply != null ? reply : new Bundle();
+        if (names != null) {
+            mGenerationRegistry.addWriteGenerationData(generationData, tableName, tableUserId,
+                    names);
+        }
+        if (hasListeners) {
+            mListenerRegistry.dispatchChange(tableName, tableUserId, names, values,
+                    generationData.getInt(AsylumSettings.CALL_METHOD_GENERATION_INDEX_KEY, -1),
+                    generationData.getIntArray(AsylumSettings.CALL_METHOD_WRITE_GENERATIONS_KEY));
+        }
+    }
+
+    /**
+     * Answers a write of values the table holds already without touching the database, the
+     * generations or the observers, so that no client cache is flushed for nothing. Must be
+     * called with {@link #mWriteLock} held.
+     * @param reply If not {@code null}, receives the generations the values stand under.
+     */
+    private void elideWriteLocked(String tableName, int userId, String[] names, Bundle reply) {
+        if (reply != null) {
+            mGenerationRegistry.addWriteGenerationData(reply, tableName,
+                    getUserIdForTable(tableName, userId), names);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Skipped writing unchanged " + Arrays.toString(names));
+    }
+
+    /**
+     * Notifies observers of a change, once its generation was bumped.
+     * @param uri to send notifications for
+     * @param userId
+     */
+    private void notifyChange(Uri uri, String tableName, int userId) {
+        final boolean isGlobal = tableName.equals(DatabaseHelper.TABLE_GLOBAL);
         final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
         final long oldId = Binder.clearCallingIdentity();
         try {
@@ -683,6 +1513,79 @@ public class AsylumSettingsProvider extends ContentProvider {
         if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
+    /**
+     * Rewrites the boot snapshot shortly after a write if it changed any key kept there.
+     * @param names of the changed settings, or {@code null} if any setting of the table may
+     *     have changed
+     */
+    private void maybeScheduleBootSnapshotWrite(String tableName, int userId, String[] names) {
+        if (userId != UserHandle.USER_OWNER) {
+            return;
+        }
+        final String[] prefixes = getBootSnapshotPrefixes(tableName);
+        boolean affected = names == null && prefixes.length > 0;
+        for (int i = 0; !affected && names != null && i < names.length; i++) {
+            for (String prefix : prefixes) {
+                if (names[i].startsWith(prefix)) {
+                    affected = true;
+                    break;
+                }
+            }
+        }
+        if (affected) {
+            BackgroundThread.getHandler().removeCallbacks(mWriteBootSnapshot);
+            BackgroundThread.getHandler().postDelayed(mWriteBootSnapshot,
+                    BOOT_SNAPSHOT_WRITE_DELAY_MS);
+        }
+    }
+
+    private static String[] getBootSnapshotPrefixes(String tableName) {
+        if (DatabaseHelper.TABLE_SYSTEM.equals(tableName)) {
+            return AsylumSettings.System.BOOT_SNAPSHOT_PREFIXES;
+        } else if (DatabaseHelper.TABLE_SECURE.equals(tableName)) {
+            return AsylumSettings.Secure.BOOT_SNAPSHOT_PREFIXES;
+        } else {
+            return AsylumSettings.Global.BOOT_SNAPSHOT_PREFIXES;
+        }
+    }
+
+    /**
+     * Writes the settings of the owner that system_server reads before this provider is
+     * published to the {@link BootSettingsSnapshot}. A write racing with this one schedules
+     * another run, so the file always catches up with the database.
+     */
+    private void writeBootSnapshot() {
+        final BootSettingsSnapshot snapshot = new BootSettingsSnapshot();
+        final String[] tableNames = { DatabaseHelper.TABLE_SYSTEM, DatabaseHelper.TABLE_SECURE,
+                DatabaseHelper.TABLE_GLOBAL };
+        final Uri[] uris = { AsylumSettings.System.CONTENT_URI,
+                AsylumSettings.Secure.CONTENT_URI, AsylumSettings.Global.CONTENT_URI };
+        for (int i = 0; i < tableNames.length; i++) {
+            final String[] prefixes = getBootSnapshotPrefixes(tableNames[i]);
+            final HashMap<String, String> values = new HashMap<String, String>();
+            for (String prefix : prefixes) {
+                final Bundle result = lookupValuesForPrefix(UserHandle.USER_OWNER, uris[i],
+                        Bundle.forPair(AsylumSettings.CALL_METHOD_PREFIX_KEY, prefix));
+                if (result == null) {
+                    // Better an older snapshot than one missing keys
+                    Log.w(TAG, "Can't read " + tableNames[i] + " for the boot snapshot");
+                    return;
+                }
+                final String[] names = result.getStringArray(AsylumSettings.CALL_METHOD_NAMES_KEY);
+                final String[] prefixValues =
+                        result.getStringArray(AsylumSettings.CALL_METHOD_VALUES_KEY);
+                for (int j = 0; j < names.length; j++) {
+                    values.put(names[j], prefixValues[j]);
+                }
+            }
+            snapshot.putTable(tableNames[i], prefixes,
+                    values.keySet().toArray(new String[values.size()]),
+                    values.values().toArray(new String[values.size()]));
+        }
+        snapshot.writeTo(BootSettingsSnapshot.getFile());
+        if (LOCAL_LOGV) Log.v(TAG, "Wrote boot snapshot");
+    }
+
     private void validateSystemSettingNameValue(String name, String value) {
         AsylumSettings.Validator validator = AsylumSettings.System.VALIDATORS.get(name);
         if (validator == null) {
@@ -706,6 +1609,4 @@ public class AsylumSettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
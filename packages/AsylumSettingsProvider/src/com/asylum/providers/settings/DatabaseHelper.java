@@ -24,19 +24,28 @@ import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import asylum.provider.AsylumSettings;
+
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.Map;
 
 /**
  * The SlimDatabaseHelper allows creation of a database to store Asylum specific settings for a user
@@ -47,7 +56,7 @@ public class DatabaseHelper extends SQLiteOpenHelper{
     private static final boolean DEBUG = false;
 
     private static final String DATABASE_NAME = "asylum_settings.db";
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 1;
 
     public static final String TABLE_SYSTEM = "system";
     public static final String TABLE_SECURE = "secure";
@@ -65,12 +74,21 @@ public class DatabaseHelper extends SQLiteOpenHelper{
 
     private static final String DROP_INDEX_SQL_FORMAT = "DROP INDEX IF EXISTS %sIndex%d;";
 
+    private static final String UPSERT_SQL_FORMAT =
+            "INSERT OR REPLACE INTO %s(name,value) VALUES(?,?);";
+
     private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
 
     private Context mContext;
     private int mUserHandle;
     private String mPublicSrcDir;
 
+    // The upsert statement of each table, compiled once against mStatementDb. A statement is
+    // bound and executed with its own lock held. Guarded by mUpsertStatements.
+    private final ArrayMap<String, SQLiteStatement> mUpsertStatements =
+            new ArrayMap<String, SQLiteStatement>();
+    private SQLiteDatabase mStatementDb;
+
     /**
      * Gets the appropriate database path for a specific user
      * @param userId The database path for this user
@@ -187,6 +205,157 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         db.execSQL(dropIndexSql);
     }
 
+    /**
+     * Writes a setting through the precompiled upsert statement of its table, instead of
+     * building an INSERT on every call like {@link SQLiteDatabase#insert} does. Joins the
+     * transaction of the calling thread, if any.
+     * @return false if the setting could not be written
+     */
+    boolean putValue(String tableName, String name, String value) {
+        return putValue(getUpsertStatement(tableName), name, value);
+    }
+
+    private static boolean putValue(SQLiteStatement stmt, String name, String value) {
+        synchronized (stmt) {
+            try {
+                bindStringOrNull(stmt, 1, name);
+                bindStringOrNull(stmt, 2, value);
+                return stmt.executeInsert() >= 0;
+            } catch (SQLException e) {
+                Log.e(TAG, "Error inserting " + name, e);
+                return false;
+            } finally {
+                stmt.clearBindings();
+            }
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement stmt, int index, String value) {
+        if (value != null) {
+            stmt.bindString(index, value);
+        } else {
+            stmt.bindNull(index);
+        }
+    }
+
+    private SQLiteStatement getUpsertStatement(String tableName) {
+        final SQLiteDatabase db = getWritableDatabase();
+        synchronized (mUpsertStatements) {
+            if (db != mStatementDb) {
+                // The database was reopened, the old statements are bound to the closed one
+                for (int i = 0; i < mUpsertStatements.size(); i++) {
+                    mUpsertStatements.valueAt(i).close();
+                }
+                mUpsertStatements.clear();
+                mStatementDb = db;
+            }
+            SQLiteStatement stmt = mUpsertStatements.get(tableName);
+            if (stmt == null) {
+                stmt = db.compileStatement(String.format(UPSERT_SQL_FORMAT, tableName));
+                mUpsertStatements.put(tableName, stmt);
+            }
+            return stmt;
+        }
+    }
+
+    /**
+     * Times writing and reading single settings of a scratch in-memory table, building every
+     * statement like {@link SQLiteDatabase#insert} and {@link SQLiteDatabase#query} do against
+     * reusing compiled statements, and prints the average time per call. Each write variant
+     * runs on a fresh table filled by an untimed warm-up pass, in alternating order over two
+     * rounds, so that neither gains from running second.
+     */
+    static void benchmarkStatements(PrintWriter pw, int iterations) {
+        final String[] names = new String[64];
+        final String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "benchmark_setting_" + i;
+            values[i] = Integer.toString(i);
+        }
+        final String[] valueProjection = new String[] { Settings.NameValueTable.VALUE };
+        final String nameSelection = Settings.NameValueTable.NAME + "=?";
+
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            long insertNanos = 0;
+            long upsertNanos = 0;
+            for (int run = 0; run < 4; run++) {
+                // Insert, upsert, upsert, insert
+                final boolean insert = run == 0 || run == 3;
+                db.execSQL(String.format(DROP_TABLE_SQL_FORMAT, TABLE_SYSTEM));
+                db.execSQL(String.format(CREATE_TABLE_SQL_FORMAT, TABLE_SYSTEM));
+                db.execSQL(String.format(CREATE_INDEX_SQL_FORMAT, TABLE_SYSTEM, 1,
+                        TABLE_SYSTEM));
+                final SQLiteStatement upsert =
+                        db.compileStatement(String.format(UPSERT_SQL_FORMAT, TABLE_SYSTEM));
+                try {
+                    benchmarkWrites(db, upsert, insert, names, values, names.length);
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    benchmarkWrites(db, upsert, insert, names, values, iterations);
+                    final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+                    if (insert) {
+                        insertNanos += elapsed;
+                    } else {
+                        upsertNanos += elapsed;
+                    }
+                } finally {
+                    upsert.close();
+                }
+            }
+            insertNanos /= 2L * iterations;
+            upsertNanos /= 2L * iterations;
+
+            // Reads run on the table the last round filled
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < iterations; i++) {
+                final Cursor cursor = db.query(TABLE_SYSTEM, valueProjection, nameSelection,
+                        new String[] { names[i % names.length] }, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        cursor.getString(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            final long queryNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+            final SQLiteStatement select = db.compileStatement("SELECT value FROM "
+                    + TABLE_SYSTEM + " WHERE name=?;");
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < iterations; i++) {
+                select.bindString(1, names[i % names.length]);
+                try {
+                    select.simpleQueryForString();
+                } catch (SQLiteDoneException e) {
+                    // No such setting
+                }
+            }
+            final long selectNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+            select.close();
+
+            pw.println("Per call over " + iterations + " calls: insert " + insertNanos
+                    + "ns, compiled upsert " + upsertNanos + "ns, query " + queryNanos
+                    + "ns, compiled select " + selectNanos + "ns");
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void benchmarkWrites(SQLiteDatabase db, SQLiteStatement upsert,
+            boolean insert, String[] names, String[] values, int count) {
+        final ContentValues contentValues = new ContentValues(2);
+        for (int i = 0; i < count; i++) {
+            if (insert) {
+                contentValues.put(Settings.NameValueTable.NAME, names[i % names.length]);
+                contentValues.put(Settings.NameValueTable.VALUE, values[i % values.length]);
+                db.insert(TABLE_SYSTEM, null, contentValues);
+            } else {
+                putValue(upsert, names[i % names.length], values[i % values.length]);
+            }
+        }
+    }
+
     /**
      * Loads default values for specific settings into the database.
      * @param db The {@link SQLiteDatabase} to insert into.
@@ -205,6 +374,10 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         try {
             stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
                     + " VALUES(?,?);");
+
+            final ArrayMap<String, String> defaults = new ArrayMap<String, String>();
+            AsylumSettings.Secure.getDefaultValues(defaults);
+            loadDefaultSettings(stmt, defaults);
         } finally {
             if (stmt != null) stmt.close();
         }
@@ -215,6 +388,10 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         try {
             stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
                     + " VALUES(?,?);");
+
+            final ArrayMap<String, String> defaults = new ArrayMap<String, String>();
+            AsylumSettings.System.getDefaultValues(defaults);
+            loadDefaultSettings(stmt, defaults);
         } finally {
             if (stmt != null) stmt.close();
         }
@@ -225,11 +402,27 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         try {
             stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
                     + " VALUES(?,?);");
+
+            final ArrayMap<String, String> defaults = new ArrayMap<String, String>();
+            AsylumSettings.Global.getDefaultValues(defaults);
+            loadDefaultSettings(stmt, defaults);
         } finally {
             if (stmt != null) stmt.close();
         }
     }
 
+    /**
+     * Loads the defaults declared in the schema of a table into a database table. Settings
+     * already present keep their value.
+     * @param stmt The SQLLiteStatement (transaction) for this table.
+     * @param defaults The default value of each setting.
+     */
+    private void loadDefaultSettings(SQLiteStatement stmt, Map<String, String> defaults) {
+        for (Map.Entry<String, String> entry : defaults.entrySet()) {
+            loadSetting(stmt, entry.getKey(), entry.getValue());
+        }
+    }
+
     /**
      * Loads a string resource into a database table. If a conflict occurs, that value is not
      * inserted into the database table.
@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2019 Project Asylum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.asylum.providers.settings;
+
+import android.os.Bundle;
+import android.util.Log;
+import android.util.MemoryIntArray;
+import android.util.SparseIntArray;
+
+import asylum.provider.AsylumSettings;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Publishes generation counters per table and user in a shared memory region. Clients map
+ * the region once and check their counters with a plain memory read instead of polling the
+ * version system properties on every settings read.
+ *
+ * Each table gets a block of {@link #BLOCK_SIZE} consecutive counters: one for the table as a
+ * whole followed by one per {@link AsylumSettings#getGenerationBucket key bucket}, so that a
+ * write only invalidates the client cache entries of keys sharing its bucket.
+ */
+final class GenerationRegistry {
+    private static final String TAG = "AsylumGenerationRegistry";
+    private static final boolean DEBUG = false;
+
+    private static final int TABLE_SYSTEM = 0;
+    private static final int TABLE_SECURE = 1;
+    private static final int TABLE_GLOBAL = 2;
+
+    private static final int BLOCK_SIZE = 1 + AsylumSettings.GENERATION_BUCKET_COUNT;
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private final SparseIntArray mKeyToIndexMap = new SparseIntArray();
+
+    // Guarded by mLock. Null until first needed and after an unrecoverable error.
+    private MemoryIntArray mBackingStore;
+
+    // Guarded by mLock. Once the backing store failed we stay on the property fallback.
+    private boolean mBackingStoreFailed;
+
+    /**
+     * Bumps the generation of a table for a user, once for a whole batch of changes.
+     * @param names The settings that changed, or {@code null} to invalidate every key.
+     * @return false if there is no shared memory counter for the table, in which case the
+     *     caller has to fall back to the version system property.
+     */
+    public boolean incrementGeneration(String tableName, int userId, String[] names) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return false;
+            }
+            try {
+                final int index = getKeyIndexLocked(makeKey(tableName, userId), backingStore);
+                if (index < 0) {
+                    return false;
+                }
+                if (names != null) {
+                    // Bump each bucket once no matter how many of the keys share it
+                    final boolean[] changed = new boolean[AsylumSettings.GENERATION_BUCKET_COUNT];
+                    for (String name : names) {
+                        changed[AsylumSettings.getGenerationBucket(name)] = true;
+                    }
+                    for (int i = 0; i < changed.length; i++) {
+                        if (changed[i]) {
+                            incrementLocked(backingStore, index + 1 + i);
+                        }
+                    }
+                } else {
+                    for (int i = 1; i < BLOCK_SIZE; i++) {
+                        incrementLocked(backingStore, index + i);
+                    }
+                }
+                final int generation = incrementLocked(backingStore, index);
+                if (DEBUG) {
+                    Log.v(TAG, tableName + " for user " + userId + " is now " + generation
+                            + " after change of "
+                            + (names != null ? Arrays.toString(names) : "all keys"));
+                }
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error updating generation id", e);
+                destroyBackingStoreLocked();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Adds the shared memory region, the counter index and the current generation for a table
+     * to a reply bundle. Leaves the bundle untouched if no counter is available.
+     */
+    public void addGenerationData(Bundle bundle, String tableName, int userId) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return;
+            }
+            try {
+                final int index = getKeyIndexLocked(makeKey(tableName, userId), backingStore);
+                if (index >= 0) {
+                    bundle.putParcelable(AsylumSettings.CALL_METHOD_TRACK_GENERATION_KEY,
+                            backingStore);
+                    bundle.putInt(AsylumSettings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                    bundle.putInt(AsylumSettings.CALL_METHOD_GENERATION_KEY,
+                            backingStore.get(index));
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding generation data", e);
+                destroyBackingStoreLocked();
+            }
+        }
+    }
+
+    /**
+     * Adds the counter index and the current generation of each key to a reply. For a write,
+     * these are the generations the keys were published under, so the writer can cache its
+     * own values without reading them back; it must be called right after
+     * {@link #incrementGeneration} with the writes serialized, or the generations may belong
+     * to a later write. For a read, it must be called before the values are looked up. Leaves
+     * the bundle untouched if no counter is available.
+     */
+    public void addWriteGenerationData(Bundle bundle, String tableName, int userId,
+            String[] names) {
+        synchronized (mLock) {
+            if (mBackingStore == null) {
+                return;
+            }
+            final int index = mKeyToIndexMap.get(makeKey(tableName, userId), -1);
+            if (index < 0) {
+                return;
+            }
+            try {
+                final int[] generations = new int[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    generations[i] = mBackingStore.get(
+                            index + 1 + AsylumSettings.getGenerationBucket(names[i]));
+                }
+                bundle.putInt(AsylumSettings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                bundle.putIntArray(AsylumSettings.CALL_METHOD_WRITE_GENERATIONS_KEY,
+                        generations);
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding write generation data", e);
+                destroyBackingStoreLocked();
+            }
+        }
+    }
+
+    /**
+     * Releases the counters of a removed user so their slots can be reused.
+     */
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            if (mBackingStore == null) {
+                return;
+            }
+            for (int i = mKeyToIndexMap.size() - 1; i >= 0; i--) {
+                if (getUserIdFromKey(mKeyToIndexMap.keyAt(i)) != userId) {
+                    continue;
+                }
+                try {
+                    final int index = mKeyToIndexMap.valueAt(i);
+                    for (int j = 0; j < BLOCK_SIZE; j++) {
+                        mBackingStore.set(index + j, 0);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error cleaning up for user " + userId, e);
+                    destroyBackingStoreLocked();
+                    return;
+                }
+                mKeyToIndexMap.removeAt(i);
+            }
+        }
+    }
+
+    private MemoryIntArray getBackingStoreLocked() {
+        if (mBackingStore == null && !mBackingStoreFailed) {
+            try {
+                mBackingStore = new MemoryIntArray(MemoryIntArray.getMaxSize());
+                if (DEBUG) Log.d(TAG, "Created backing store " + mBackingStore);
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating generation tracker", e);
+                mBackingStoreFailed = true;
+            }
+        }
+        return mBackingStore;
+    }
+
+    private void destroyBackingStoreLocked() {
+        if (mBackingStore != null) {
+            try {
+                mBackingStore.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close generation memory array", e);
+            }
+            mBackingStore = null;
+        }
+        mKeyToIndexMap.clear();
+        mBackingStoreFailed = true;
+    }
+
+    private static int incrementLocked(MemoryIntArray backingStore, int index)
+            throws IOException {
+        int generation = backingStore.get(index) + 1;
+        if (generation <= 0) {
+            // Wrapped around; skip 0 which marks a free slot and negative values which
+            // clients read as errors
+            generation = 1;
+        }
+        backingStore.set(index, generation);
+        return generation;
+    }
+
+    private int getKeyIndexLocked(int key, MemoryIntArray backingStore) throws IOException {
+        int index = mKeyToIndexMap.get(key, -1);
+        if (index < 0) {
+            index = findNextEmptyBlock(backingStore);
+            if (index >= 0) {
+                // Generations start at 1 so that 0 marks a free slot
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    backingStore.set(index + i, 1);
+                }
+                mKeyToIndexMap.append(key, index);
+                if (DEBUG) Log.d(TAG, "Allocated index " + index + " for key " + key);
+            } else {
+                Log.e(TAG, "Could not allocate generation index");
+            }
+        }
+        return index;
+    }
+
+    private static int findNextEmptyBlock(MemoryIntArray backingStore) throws IOException {
+        final int size = backingStore.size();
+        for (int i = 0; i + BLOCK_SIZE <= size; i += BLOCK_SIZE) {
+            if (backingStore.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int makeKey(String tableName, int userId) {
+        final int table;
+        if (DatabaseHelper.TABLE_SYSTEM.equals(tableName)) {
+            table = TABLE_SYSTEM;
+        } else if (DatabaseHelper.TABLE_SECURE.equals(tableName)) {
+            table = TABLE_SECURE;
+        } else {
+            table = TABLE_GLOBAL;
+        }
+        return (table << 28) | userId;
+    }
+
+    private static int getUserIdFromKey(int key) {
+        return key & 0x0fffffff;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2019 Project Asylum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.asylum.providers.settings;
+
+import android.content.Context;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary copy of the settings database of a user, mapped read-only to load the
+ * in-memory tables without opening SQLite.
+ *
+ * Layout, big endian, offsets relative to the start of the payload:
+ * <pre>
+ *   header:  magic, format version, database version, table count (ints), CRC32 (long)
+ *   payload: table count x { name offset, name length, entry count, entries offset }
+ *            per table, entry count x { key offset, key length, value offset, value length }
+ *            string pool of UTF-8 bytes
+ * </pre>
+ * Entries are sorted by key in {@link String#compareTo} order, the order of the tables they
+ * are loaded into. A null value has a length of -1. The checksum covers the whole payload.
+ */
+final class SettingsFile {
+    private static final String TAG = "AsylumSettingsFile";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "asylum_settings.bin";
+
+    private static final int MAGIC = 0x41534246;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 * 4 + 8;
+    private static final int TABLE_RECORD_SIZE = 4 * 4;
+    private static final int ENTRY_RECORD_SIZE = 4 * 4;
+
+    private final File mFile;
+    // Positioned at the start of the payload
+    private final ByteBuffer mPayload;
+    private final int mTableCount;
+
+    private SettingsFile(File file, ByteBuffer payload, int tableCount) {
+        mFile = file;
+        mPayload = payload;
+        mTableCount = tableCount;
+    }
+
+    /**
+     * @return where the settings file of a user lives, next to its database
+     */
+    static File getFileForUser(Context context, int userId) {
+        final File dbFile = context.getDatabasePath(DatabaseHelper.dbNameForUser(userId));
+        return new File(dbFile.getParentFile(), FILE_NAME);
+    }
+
+    /**
+     * Maps a settings file.
+     * @param databaseVersion The version of the database the file must have been made from.
+     * @return the file, or null if there is none, it is corrupt or it is out of date
+     */
+    static SettingsFile open(File file, int databaseVersion) {
+        final ByteBuffer buffer;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't map " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    // The mapping outlives the channel
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != FORMAT_VERSION) {
+            Log.w(TAG, "Ignoring " + file + " of unknown format");
+            return null;
+        }
+        if (buffer.getInt(8) != databaseVersion) {
+            if (DEBUG) Log.d(TAG, "Ignoring " + file + " of database version "
+                    + buffer.getInt(8));
+            return null;
+        }
+        final int tableCount = buffer.getInt(12);
+        final long checksum = buffer.getLong(16);
+
+        buffer.position(HEADER_SIZE);
+        final ByteBuffer payload = buffer.slice();
+        if (checksum(payload) != checksum) {
+            Log.w(TAG, "Ignoring " + file + " with bad checksum");
+            return null;
+        }
+        if (tableCount < 0 || (long) tableCount * TABLE_RECORD_SIZE > payload.limit()) {
+            Log.w(TAG, "Ignoring " + file + " with bad table count " + tableCount);
+            return null;
+        }
+        return new SettingsFile(file, payload, tableCount);
+    }
+
+    /**
+     * Decodes the settings of a table.
+     * @return the settings ordered by name, or null if the file doesn't hold the table
+     */
+    TreeMap<String, String> readTable(String tableName) {
+        try {
+            for (int i = 0; i < mTableCount; i++) {
+                final int record = i * TABLE_RECORD_SIZE;
+                if (!tableName.equals(readString(mPayload.getInt(record),
+                        mPayload.getInt(record + 4)))) {
+                    continue;
+                }
+                final int entryCount = mPayload.getInt(record + 8);
+                final int entriesOffset = mPayload.getInt(record + 12);
+                final TreeMap<String, String> values = new TreeMap<String, String>();
+                for (int j = 0; j < entryCount; j++) {
+                    final int entry = entriesOffset + j * ENTRY_RECORD_SIZE;
+                    values.put(readString(mPayload.getInt(entry), mPayload.getInt(entry + 4)),
+                            readString(mPayload.getInt(entry + 8),
+                                    mPayload.getInt(entry + 12)));
+                }
+                return values;
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // The checksum matched, so the writer was broken
+            Log.e(TAG, "Corrupt table " + tableName + " in " + mFile, e);
+        }
+        return null;
+    }
+
+    private String readString(int offset, int length) {
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuffer view = mPayload.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the settings of a user to a settings file, replacing the previous one atomically.
+     * @param tables The settings of each table, by table name.
+     * @return false if the file could not be written
+     */
+    static boolean write(File file, int databaseVersion,
+            ArrayMap<String, ? extends SortedMap<String, String>> tables) {
+        final byte[] payload;
+        try {
+            payload = encode(tables);
+        } catch (IOException e) {
+            // Only thrown by the underlying stream, which is in memory
+            throw new IllegalStateException(e);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(databaseVersion);
+            out.writeInt(tables.size());
+            out.writeLong(crc.getValue());
+            out.write(payload);
+            out.flush();
+            atomicFile.finishWrite(fos);
+            if (DEBUG) Log.d(TAG, "Wrote " + payload.length + " bytes to " + file);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write " + file, e);
+            if (fos != null) {
+                atomicFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a settings file, e.g. once the database moved past it.
+     */
+    static void delete(File file) {
+        new AtomicFile(file).delete();
+    }
+
+    private static byte[] encode(ArrayMap<String, ? extends SortedMap<String, String>> tables)
+            throws IOException {
+        int entryCount = 0;
+        for (int i = 0; i < tables.size(); i++) {
+            entryCount += tables.valueAt(i).size();
+        }
+        final int entriesStart = tables.size() * TABLE_RECORD_SIZE;
+        final int poolStart = entriesStart + entryCount * ENTRY_RECORD_SIZE;
+
+        final ByteArrayOutputStream records = new ByteArrayOutputStream(poolStart);
+        final DataOutputStream recordsOut = new DataOutputStream(records);
+        final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+        // Table directory first, then the entries of each table in the same order
+        int entriesOffset = entriesStart;
+        for (int i = 0; i < tables.size(); i++) {
+            writeString(recordsOut, pool, poolStart, tables.keyAt(i));
+            recordsOut.writeInt(tables.valueAt(i).size());
+            recordsOut.writeInt(entriesOffset);
+            entriesOffset += tables.valueAt(i).size() * ENTRY_RECORD_SIZE;
+        }
+        for (int i = 0; i < tables.size(); i++) {
+            for (Map.Entry<String, String> entry : tables.valueAt(i).entrySet()) {
+                writeString(recordsOut, pool, poolStart, entry.getKey());
+                writeString(recordsOut, pool, poolStart, entry.getValue());
+            }
+        }
+        recordsOut.flush();
+        pool.writeTo(records);
+        return records.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream records, ByteArrayOutputStream pool,
+            int poolStart, String value) throws IOException {
+        if (value == null) {
+            records.writeInt(0);
+            records.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        records.writeInt(poolStart + pool.size());
+        records.writeInt(bytes.length);
+        pool.write(bytes);
+    }
+
+    private static long checksum(ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer view = payload.duplicate();
+        view.position(0);
+        final byte[] chunk = new byte[8192];
+        while (view.hasRemaining()) {
+            final int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2019 Project Asylum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.asylum.providers.settings;
+
+import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.Log;
+
+import asylum.provider.IAsylumSettingsListener;
+
+import java.util.Arrays;
+
+/**
+ * Pushes changed settings with their new values to registered listeners, so that clients
+ * don't need another round trip to read what changed. Changes are delivered on a single
+ * handler in the order they were queued.
+ */
+final class SettingsListenerRegistry {
+    private static final String TAG = "AsylumSettingsListeners";
+    private static final boolean DEBUG = false;
+
+    private static final class Registration {
+        final String tableName;
+        final int userId;
+
+        Registration(String tableName, int userId) {
+            this.tableName = tableName;
+            this.userId = userId;
+        }
+    }
+
+    private final RemoteCallbackList<IAsylumSettingsListener> mListeners =
+            new RemoteCallbackList<IAsylumSettingsListener>();
+
+    private final Handler mHandler;
+
+    SettingsListenerRegistry(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * @param userId The user to listen to, or {@link UserHandle#USER_ALL}. Ignored for the
+     *     global table.
+     */
+    public void register(IAsylumSettingsListener listener, String tableName, int userId) {
+        mListeners.register(listener, new Registration(tableName, userId));
+        if (DEBUG) Log.d(TAG, "Registered " + listener + " for " + tableName + " of " + userId);
+    }
+
+    public void unregister(IAsylumSettingsListener listener) {
+        mListeners.unregister(listener);
+    }
+
+    public boolean hasListeners() {
+        return mListeners.getRegisteredCallbackCount() > 0;
+    }
+
+    /**
+     * Queues a change for delivery. Call with the writes serialized, so that listeners see
+     * changes in the order they were made.
+     * @param names The changed settings, or {@code null} if any setting may have changed.
+     */
+    public void dispatchChange(final String tableName, final int userId, final String[] names,
+            final String[] values, final int generationIndex, final int[] generations) {
+        if (!hasListeners()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(tableName, userId, names, values, generationIndex, generations);
+            }
+        });
+    }
+
+    private void deliver(String tableName, int userId, String[] names, String[] values,
+            int generationIndex, int[] generations) {
+        final boolean isGlobal = DatabaseHelper.TABLE_GLOBAL.equals(tableName);
+        final int count = mListeners.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                final Registration registration =
+                        (Registration) mListeners.getBroadcastCookie(i);
+                if (!registration.tableName.equals(tableName)
+                        || !(isGlobal || registration.userId == UserHandle.USER_ALL
+                                || registration.userId == userId)) {
+                    continue;
+                }
+                try {
+                    mListeners.getBroadcastItem(i).onSettingsChanged(userId, generationIndex,
+                            names, values, generations);
+                } catch (RemoteException e) {
+                    // The list drops dead listeners on its own
+                }
+            }
+        } finally {
+            mListeners.finishBroadcast();
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Delivered change of " + tableName + " for user " + userId + ": "
+                    + (names != null ? Arrays.toString(names) : "all keys"));
+        }
+    }
+}
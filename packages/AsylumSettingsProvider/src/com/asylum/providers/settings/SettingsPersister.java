@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2019 Project Asylum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.asylum.providers.settings;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Persists the settings written to the in-memory tables in the background. Writes are
+ * queued, only the latest value of each key is kept, and after the write delay everything
+ * queued for a user goes to its database in one transaction, so the database always holds
+ * either all of a batch or none of it.
+ *
+ * The durability policy is the write delay, read from {@link #PROP_WRITE_DELAY_MS} at start:
+ * the longest a written value may wait before it is persisted. A delay of 0 persists every
+ * write on the calling thread before the write returns. Queued values are flushed right away
+ * on shutdown and when their user stops.
+ *
+ * A batch that fails to persist stays queued and the user it belongs to is retried with
+ * exponential backoff, up to {@link #MAX_RETRY_DELAY_MS} apart, without holding up the writes
+ * of other users. Persistent failures are reported once through {@link Log#wtf}; the values
+ * keep being served from memory meanwhile, and explicit flushes still try them right away.
+ */
+final class SettingsPersister {
+    private static final String TAG = "AsylumSettingsPersister";
+    private static final boolean DEBUG = false;
+
+    static final String PROP_WRITE_DELAY_MS = "persist.sys.asylumsettings.write_delay";
+    static final long DEFAULT_WRITE_DELAY_MS = 200;
+
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    // Consecutive failures of a user after which we report that its settings can't be persisted
+    private static final int FAILURES_BEFORE_WTF = 5;
+
+    private static final class PendingUser {
+        final DatabaseHelper dbHelper;
+        // Latest value of each dirty key, per table
+        final ArrayMap<String, ArrayMap<String, String>> tables =
+                new ArrayMap<String, ArrayMap<String, String>>();
+
+        PendingUser(DatabaseHelper dbHelper) {
+            this.dbHelper = dbHelper;
+        }
+    }
+
+    private final Handler mHandler;
+    private final long mWriteDelayMs;
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private final SparseArray<PendingUser> mPending = new SparseArray<PendingUser>();
+    // Uptime of the next run of the background writer, or 0 if none is scheduled
+    private long mWriteScheduledAt;
+    // Consecutive failures to persist the settings of each user, and the uptime at which
+    // the background writer tries them next
+    private final SparseIntArray mFailures = new SparseIntArray();
+    private final SparseLongArray mRetryAt = new SparseLongArray();
+
+    // Held while draining and writing, so that an older batch can't land after a newer one
+    private final Object mPersistLock = new Object();
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mWriteScheduledAt = 0;
+            }
+            drain(false);
+            synchronized (mLock) {
+                // Come back for the users backing off; the others scheduled us when queued
+                for (int i = 0; i < mPending.size(); i++) {
+                    final int index = mRetryAt.indexOfKey(mPending.keyAt(i));
+                    if (index >= 0) {
+                        scheduleWriteLocked(mRetryAt.valueAt(index));
+                    }
+                }
+            }
+        }
+    };
+
+    SettingsPersister(Handler handler) {
+        mHandler = handler;
+        mWriteDelayMs = Math.max(0,
+                SystemProperties.getLong(PROP_WRITE_DELAY_MS, DEFAULT_WRITE_DELAY_MS));
+    }
+
+    /**
+     * @return whether writes are queued, rather than persisted by the writer itself
+     */
+    boolean isWriteBehind() {
+        return mWriteDelayMs > 0;
+    }
+
+    /**
+     * Queues values already applied to the in-memory table to be persisted.
+     * @param userId The user owning {@code dbHelper}.
+     */
+    void queue(DatabaseHelper dbHelper, int userId, String tableName, String[] names,
+            String[] values) {
+        synchronized (mLock) {
+            PendingUser user = mPending.get(userId);
+            if (user == null) {
+                user = new PendingUser(dbHelper);
+                mPending.put(userId, user);
+            }
+            ArrayMap<String, String> table = user.tables.get(tableName);
+            if (table == null) {
+                table = new ArrayMap<String, String>();
+                user.tables.put(tableName, table);
+            }
+            for (int i = 0; i < names.length; i++) {
+                table.put(names[i], values[i]);
+            }
+            // Sooner than the retry of a user backing off, if that is what is scheduled
+            scheduleWriteLocked(SystemClock.uptimeMillis() + mWriteDelayMs);
+        }
+    }
+
+    /**
+     * Makes sure the background writer runs no later than {@code uptimeMillis}.
+     */
+    private void scheduleWriteLocked(long uptimeMillis) {
+        if (mWriteScheduledAt != 0 && mWriteScheduledAt <= uptimeMillis) {
+            return;
+        }
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.postAtTime(mWriteRunnable, uptimeMillis);
+        mWriteScheduledAt = uptimeMillis;
+    }
+
+    /**
+     * Persists everything queued on the calling thread.
+     */
+    void flush() {
+        drain(true);
+    }
+
+    /**
+     * @param all Whether to include the users backing off after failures.
+     */
+    private void drain(boolean all) {
+        synchronized (mPersistLock) {
+            final SparseArray<PendingUser> pending = new SparseArray<PendingUser>();
+            final long now = SystemClock.uptimeMillis();
+            synchronized (mLock) {
+                for (int i = mPending.size() - 1; i >= 0; i--) {
+                    final int userId = mPending.keyAt(i);
+                    if (all || mRetryAt.get(userId) <= now) {
+                        pending.put(userId, mPending.valueAt(i));
+                        mPending.removeAt(i);
+                    }
+                }
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                persist(pending.keyAt(i), pending.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Persists everything queued for a user on the calling thread, e.g. before the database
+     * of the user is written or read directly.
+     * @return false if the queued values could not be persisted, and were queued again
+     */
+    boolean flushUser(int userId) {
+        synchronized (mPersistLock) {
+            final PendingUser user;
+            synchronized (mLock) {
+                user = mPending.get(userId);
+                mPending.remove(userId);
+            }
+            return user == null || persist(userId, user);
+        }
+    }
+
+    /**
+     * Forgets the values queued for a removed user, whose database goes away.
+     */
+    void dropUser(int userId) {
+        synchronized (mLock) {
+            mPending.remove(userId);
+            mFailures.delete(userId);
+            mRetryAt.delete(userId);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Write delay: " + mWriteDelayMs + "ms, users queued: " + mPending.size()
+                    + ", consecutive failures per user: " + mFailures);
+        }
+    }
+
+    private boolean persist(int userId, PendingUser user) {
+        int count = 0;
+        try {
+            final SQLiteDatabase db = user.dbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < user.tables.size(); i++) {
+                    final String tableName = user.tables.keyAt(i);
+                    final ArrayMap<String, String> values = user.tables.valueAt(i);
+                    for (int j = 0; j < values.size(); j++) {
+                        if (!user.dbHelper.putValue(tableName, values.keyAt(j),
+                                values.valueAt(j))) {
+                            throw new SQLiteException("Failed to insert " + values.keyAt(j)
+                                    + " into " + tableName);
+                        }
+                        count++;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (DEBUG) Log.d(TAG, "Persisted " + count + " settings of user " + userId);
+            synchronized (mLock) {
+                if (mFailures.get(userId) > 0) {
+                    Log.i(TAG, "Persisted settings of user " + userId + " after "
+                            + mFailures.get(userId) + " failures");
+                    mFailures.delete(userId);
+                    mRetryAt.delete(userId);
+                }
+            }
+            return true;
+        } catch (SQLiteException e) {
+            requeue(userId, user, e);
+            return false;
+        }
+    }
+
+    /**
+     * Puts back a batch that failed to persist, unless its keys were written again since, and
+     * schedules the next attempt further out the more attempts failed in a row.
+     */
+    private void requeue(int userId, PendingUser failed, SQLiteException e) {
+        synchronized (mLock) {
+            final PendingUser user = mPending.get(userId);
+            if (user == null) {
+                mPending.put(userId, failed);
+            } else {
+                for (int i = 0; i < failed.tables.size(); i++) {
+                    final ArrayMap<String, String> newer =
+                            user.tables.get(failed.tables.keyAt(i));
+                    if (newer == null) {
+                        user.tables.put(failed.tables.keyAt(i), failed.tables.valueAt(i));
+                        continue;
+                    }
+                    final ArrayMap<String, String> older = failed.tables.valueAt(i);
+                    for (int j = 0; j < older.size(); j++) {
+                        if (!newer.containsKey(older.keyAt(j))) {
+                            newer.put(older.keyAt(j), older.valueAt(j));
+                        }
+                    }
+                }
+            }
+
+            final int failures = mFailures.get(userId) + 1;
+            mFailures.put(userId, failures);
+            if (failures == 1) {
+                Log.e(TAG, "Failed to persist settings of user " + userId + ", retrying", e);
+            } else if (failures == FAILURES_BEFORE_WTF) {
+                Log.wtf(TAG, "Settings of user " + userId + " failed to persist " + failures
+                        + " times in a row, they only live in memory", e);
+            } else if (DEBUG) {
+                Log.d(TAG, "Failed to persist settings of user " + userId + " again", e);
+            }
+
+            final long delay = Math.min(MAX_RETRY_DELAY_MS,
+                    MIN_RETRY_DELAY_MS << Math.min(failures - 1, 16));
+            final long retryAt = SystemClock.uptimeMillis() + delay;
+            mRetryAt.put(userId, retryAt);
+            scheduleWriteLocked(retryAt);
+        }
+    }
+}
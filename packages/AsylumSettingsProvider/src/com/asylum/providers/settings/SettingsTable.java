@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2019 Project Asylum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.asylum.providers.settings;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The settings of one table of one user, held in memory so that reads never touch the
+ * database. Loaded on first access; writers apply their changes here, ahead of the database
+ * when its writes are deferred, and fall back to {@link #invalidate()} after flushing when
+ * they can't tell which rows changed.
+ * Sorted by name, so that prefix lookups are range views like the index scans they replace.
+ *
+ * The first load may come from a {@link SettingsFile} instead of the database; every later
+ * load, after an invalidation, reads the database.
+ */
+final class SettingsTable {
+    private static final String TAG = "AsylumSettingsTable";
+    private static final boolean DEBUG = false;
+
+    private static final String[] LOAD_PROJECTION = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE };
+
+    private final DatabaseHelper mDbHelper;
+    private final String mTableName;
+
+    // Guarded by this. Null until loaded and after invalidate().
+    private TreeMap<String, String> mValues;
+
+    // Guarded by this. Dropped once used, since only the first load may come from it.
+    private SettingsFile mSettingsFile;
+
+    /**
+     * @param settingsFile The settings file to load from instead of the database, or null.
+     */
+    SettingsTable(DatabaseHelper dbHelper, String tableName, SettingsFile settingsFile) {
+        mDbHelper = dbHelper;
+        mTableName = tableName;
+        mSettingsFile = settingsFile;
+    }
+
+    /**
+     * @return the value of {@code name}, or null if it is unset
+     */
+    synchronized String getValue(String name) {
+        return getValuesLocked().get(name);
+    }
+
+    /**
+     * @return the values of {@code names} in order, all read at one state of the table
+     */
+    synchronized String[] getValues(String[] names) {
+        final TreeMap<String, String> values = getValuesLocked();
+        final String[] result = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = values.get(names[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of every setting whose name starts with {@code prefix}, ordered by name
+     */
+    synchronized TreeMap<String, String> getValuesForPrefix(String prefix) {
+        final String upperBound = AsylumSettingsProvider.getPrefixUpperBound(prefix);
+        final TreeMap<String, String> values = getValuesLocked();
+        final SortedMap<String, String> range = upperBound != null
+                ? values.subMap(prefix, upperBound) : values.tailMap(prefix);
+        return new TreeMap<String, String>(range);
+    }
+
+    /**
+     * @return whether {@code name} is set to {@code value} already, so writing it is a no-op
+     */
+    synchronized boolean holds(String name, String value) {
+        final TreeMap<String, String> values = getValuesLocked();
+        return values.containsKey(name) && TextUtils.equals(values.get(name), value);
+    }
+
+    /**
+     * @return a copy of the row of {@code name}, empty if the table has none
+     */
+    synchronized TreeMap<String, String> getRow(String name) {
+        final TreeMap<String, String> values = getValuesLocked();
+        final TreeMap<String, String> row = new TreeMap<String, String>();
+        if (values.containsKey(name)) {
+            row.put(name, values.get(name));
+        }
+        return row;
+    }
+
+    /**
+     * @return a copy of every setting of the table, ordered by name
+     */
+    synchronized TreeMap<String, String> getAllValues() {
+        return new TreeMap<String, String>(getValuesLocked());
+    }
+
+    /**
+     * Applies a batch of writes. Loads the table first, since the database may not have the
+     * writes yet.
+     */
+    synchronized void putValues(String[] names, String[] values) {
+        final TreeMap<String, String> tableValues = getValuesLocked();
+        for (int i = 0; i < names.length; i++) {
+            tableValues.put(names[i], values[i]);
+        }
+    }
+
+    /**
+     * Drops the values after a write changing rows we can't tell, so that the next read loads
+     * them again.
+     */
+    synchronized void invalidate() {
+        mValues = null;
+        mSettingsFile = null;
+    }
+
+    private TreeMap<String, String> getValuesLocked() {
+        if (mValues == null && mSettingsFile != null) {
+            final long start = SystemClock.elapsedRealtime();
+            mValues = mSettingsFile.readTable(mTableName);
+            mSettingsFile = null;
+            if (DEBUG && mValues != null) {
+                Log.d(TAG, "Loaded " + mValues.size() + " settings of " + mTableName
+                        + " from file in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+        }
+        if (mValues == null) {
+            mValues = load(mDbHelper.getReadableDatabase(), mTableName);
+        }
+        return mValues;
+    }
+
+    /**
+     * Reads every setting of a table from the database.
+     */
+    static TreeMap<String, String> load(SQLiteDatabase db, String tableName) {
+        final TreeMap<String, String> values = new TreeMap<String, String>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(tableName, LOAD_PROJECTION, null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                values.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + values.size() + " settings of " + tableName);
+        return values;
+    }
+}
@@ -62,8 +62,12 @@ import android.widget.Toast;
 import com.android.systemui.R;
 import com.android.systemui.statusbar.phone.StatusBar;
 
+import asylum.provider.AsylumSettings;
+
 import com.asylum.action.ActionsManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 public class AsylumStatusBar extends StatusBar implements CommandQueue.Callbacks {
@@ -114,6 +118,12 @@ public class AsylumStatusBar extends StatusBar implements CommandQueue.Callbacks
     public void toggleRecents() {
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        AsylumSettings.dumpCacheStats(pw);
+    }
+
     protected class H extends Handler {
         public void handleMessage(Message m) {
             switch (m.what) {
@@ -18,11 +18,8 @@
 package com.android.systemui.statusbar.asylum;
 
 import android.animation.ArgbEvaluator;
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.ContentObserver;
 import android.graphics.Rect;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.UserHandle;
 import android.util.AttributeSet;
@@ -44,7 +41,8 @@ public class BatteryContainer extends LinearLayout implements
         BatteryController.BatteryStateChangeCallback, DarkReceiver {
 
     private BatteryController mBatteryController;
-    private BatterySettingsObserver mBatteryObserver;
+    private final Handler mHandler = new Handler();
+    private AsylumSettings.Subscription mBatterySubscription;
     private BatteryMeterView mBattery;
     private View mSpacer;
     private TextView mBatteryLevel;
@@ -56,6 +54,7 @@ public class BatteryContainer extends LinearLayout implements
     private boolean mBatteryIsCharging;
     private boolean mIsQS;
     private int mBatteryChargeLevel;
+    private AsylumSettings.Snapshot mBatterySettings;
 
     private int mDarkModeBackgroundColor;
     private int mDarkModeFillColor;
@@ -66,8 +65,6 @@ public class BatteryContainer extends LinearLayout implements
     public BatteryContainer(Context context, AttributeSet attrs) {
         super(context, attrs);
 
-        mBatteryObserver = new BatterySettingsObserver(new Handler());
-
         setColorsFromContext(context);
     }
 
@@ -97,7 +94,7 @@ public class BatteryContainer extends LinearLayout implements
         mSpacer = findViewById(R.id.battery_batterytext_spacer);
         mBatteryLevel = (TextView) findViewById(R.id.battery_level_text);
 
-        updateSettings();
+        updateSettings(BatteryMeterView.getBatterySettings(mContext.getContentResolver()));
     }
 
     @Override
@@ -106,7 +103,10 @@ public class BatteryContainer extends LinearLayout implements
         if (mBatteryController != null) {
             mBatteryController.removeCallback(this);
         }
-        mBatteryObserver.unObserve();
+        if (mBatterySubscription != null) {
+            mBatterySubscription.cancel();
+            mBatterySubscription = null;
+        }
         Dependency.get(DarkIconDispatcher.class).removeDarkReceiver(this);
         mAttached = false;
     }
@@ -119,7 +119,10 @@ public class BatteryContainer extends LinearLayout implements
             mBatteryController.addCallback(this);
             mBattery.setBatteryController(mBatteryController);
         }
-        mBatteryObserver.observe();
+        // Only delivers when the values changed, bursts of changes coalesced
+        mBatterySubscription = AsylumSettings.Secure.observeForUser(
+                getContext().getContentResolver(), BatteryMeterView.BATTERY_SETTINGS,
+                UserHandle.USER_CURRENT, mHandler::post, this::updateSettings);
         Dependency.get(DarkIconDispatcher.class).addDarkReceiver(this);
         mAttached = true;
     }
@@ -128,7 +131,9 @@ public class BatteryContainer extends LinearLayout implements
     public void onBatteryLevelChanged(int level, boolean pluggedIn, boolean charging) {
         mBatteryIsCharging = charging;
         mBatteryChargeLevel = level;
-        updateSettings();
+        if (mBatterySettings != null) {
+            updateSettings(mBatterySettings);
+        }
     }
 
     @Override
@@ -136,13 +141,11 @@ public class BatteryContainer extends LinearLayout implements
         // could not care less
     }
 
-    public void updateSettings() {
-        ContentResolver resolver = mContext.getContentResolver();
-        mShowBatteryText = AsylumSettings.Secure.getInt(resolver,
-                AsylumSettings.Secure.STATUS_BAR_BATTERY_PERCENT, 0) == 2;
+    private void updateSettings(AsylumSettings.Snapshot settings) {
+        mShowBatteryText = settings.getInt(
+                AsylumSettings.Secure.ID_STATUS_BAR_BATTERY_PERCENT) == 2;
 
-        int batteryStyle = AsylumSettings.Secure.getInt(resolver,
-                AsylumSettings.Secure.STATUS_BAR_BATTERY_STYLE, 2);
+        int batteryStyle = settings.getInt(AsylumSettings.Secure.ID_STATUS_BAR_BATTERY_STYLE);
 
         switch(batteryStyle) {
             case 4:
@@ -169,7 +172,11 @@ public class BatteryContainer extends LinearLayout implements
         mBatteryLevel.setVisibility(mShowBatteryText ? View.VISIBLE : View.GONE);
         mSpacer.setVisibility(mShowBatteryTextSpacer ? View.VISIBLE : View.GONE);
 
-        mBattery.updateBatteryIconSettings();
+        // Only redo the icon when its settings changed
+        if (!settings.equals(mBatterySettings)) {
+            mBatterySettings = settings;
+            mBattery.updateBatteryIconSettings(settings);
+        }
         updateBatteryLevelText();
     }
 
@@ -183,32 +190,6 @@ public class BatteryContainer extends LinearLayout implements
         }
     }
 
-    private final class BatterySettingsObserver extends ContentObserver {
-        BatterySettingsObserver(Handler handler) {
-            super(handler);
-        }
-
-        void observe() {
-            ContentResolver resolver = getContext().getContentResolver();
-
-            resolver.registerContentObserver(AsylumSettings.Secure.getUriFor(
-                    AsylumSettings.Secure.STATUS_BAR_BATTERY_PERCENT),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(AsylumSettings.Secure.getUriFor(
-                    AsylumSettings.Secure.STATUS_BAR_BATTERY_STYLE),
-                    false, this, UserHandle.USER_ALL);
-        }
-
-        void unObserve() {
-            getContext().getContentResolver().unregisterContentObserver(this);
-        }
-
-        @Override
-        public void onChange(boolean selfChange, Uri uri) {
-            updateSettings();
-        }
-    }
-
     @Override
     public void onDarkChanged(Rect area, float darkIntensity, int tint) {
         if (mIsQS) return;
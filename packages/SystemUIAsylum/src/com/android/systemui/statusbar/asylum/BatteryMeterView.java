@@ -119,19 +119,28 @@ public class BatteryMeterView extends View implements DemoMode,
         }
     };
 
-    public void updateBatteryIconSettings() {
-        loadShowBatterySetting();
-        postInvalidate();
+    static final int[] BATTERY_SETTINGS = {
+            AsylumSettings.Secure.ID_STATUS_BAR_BATTERY_STYLE,
+            AsylumSettings.Secure.ID_STATUS_BAR_BATTERY_PERCENT,
     };
 
-    private void loadShowBatterySetting() {
-        ContentResolver resolver = mContext.getContentResolver();
+    /**
+     * Reads the battery settings together, so that a change of both is never seen half done.
+     */
+    static AsylumSettings.Snapshot getBatterySettings(ContentResolver resolver) {
+        return AsylumSettings.Secure.getSnapshot(resolver, BATTERY_SETTINGS);
+    }
+
+    public void updateBatteryIconSettings(AsylumSettings.Snapshot settings) {
+        loadShowBatterySetting(settings);
+        postInvalidate();
+    };
 
-        boolean showInsidePercent = AsylumSettings.Secure.getInt(resolver,
-                AsylumSettings.Secure.STATUS_BAR_BATTERY_PERCENT, 0) == 1;
+    private void loadShowBatterySetting(AsylumSettings.Snapshot settings) {
+        boolean showInsidePercent = settings.getInt(
+                AsylumSettings.Secure.ID_STATUS_BAR_BATTERY_PERCENT) == 1;
 
-        int batteryStyle = AsylumSettings.Secure.getInt(resolver,
-                AsylumSettings.Secure.STATUS_BAR_BATTERY_STYLE, 0);
+        int batteryStyle = settings.getInt(AsylumSettings.Secure.ID_STATUS_BAR_BATTERY_STYLE);
         BatteryMeterMode meterMode = BatteryMeterMode.BATTERY_METER_GONE;
         switch (batteryStyle) {
             case 0:
@@ -211,7 +220,7 @@ public class BatteryMeterView extends View implements DemoMode,
         mSubpixelSmoothingRight = context.getResources().getFraction(
                 R.fraction.battery_subpixel_smoothing_right, 1, 1);
 
-        loadShowBatterySetting();
+        loadShowBatterySetting(getBatterySettings(context.getContentResolver()));
         mBatteryMeterDrawable = createBatteryMeterDrawable(mMeterMode);
     }
 
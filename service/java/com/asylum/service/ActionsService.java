@@ -24,16 +24,22 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Slog;
+import com.android.internal.util.DumpUtils;
 import com.android.server.policy.WindowManagerPolicy;
 
 import com.android.server.LocalServices;
 import com.android.server.SystemService;
 import com.android.server.power.ShutdownThread;
 
+import asylum.provider.AsylumSettings;
+
 import com.asylum.action.IActionsService;
 import com.asylum.core.ServiceConstants;
 import com.asylum.core.internal.statusbar.IAsylumStatusBar;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class ActionsService extends SystemService {
     private static final String TAG = "ActionsService";
 
@@ -157,6 +163,14 @@ public class ActionsService extends SystemService {
                 mPolicy.showGlobalActions();
             }
         }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+            // Settings caches of system_server, which reads Asylum settings on hot paths
+            // such as key handling
+            AsylumSettings.dumpCacheStats(pw);
+        }
     };
 
     public ActionsService(Context context) {